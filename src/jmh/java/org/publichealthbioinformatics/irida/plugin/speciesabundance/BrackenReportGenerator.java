@@ -0,0 +1,74 @@
+package org.publichealthbioinformatics.irida.plugin.speciesabundance;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Writes synthetic Bracken species abundance reports for the benchmarks.
+ */
+class BrackenReportGenerator {
+
+	private static final long SEED = 42;
+
+	/**
+	 * Writes a report with the given number of rows.
+	 *
+	 * @param path   The file to write.
+	 * @param rows   The number of species rows.
+	 * @param sorted Whether to sort the rows from most to least abundant.
+	 * @param header Whether to write a header line.
+	 * @throws IOException If there was an error writing the file.
+	 */
+	static void write(Path path, int rows, boolean sorted, boolean header) throws IOException {
+		Random random = new Random(SEED);
+
+		// a long-tailed distribution, like a real metagenome
+		long[] reads = new long[rows];
+		long totalReads = 0;
+		for (int i = 0; i < rows; i++) {
+			reads[i] = 1 + (long) (1_000_000 / Math.pow(i + 1, 1.5));
+			totalReads += reads[i];
+		}
+
+		Integer[] order = new Integer[rows];
+		for (int i = 0; i < rows; i++) {
+			order[i] = i;
+		}
+		if (!sorted) {
+			for (int i = rows - 1; i > 0; i--) {
+				int j = random.nextInt(i + 1);
+				Integer swap = order[i];
+				order[i] = order[j];
+				order[j] = swap;
+			}
+		}
+
+		try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+			if (header) {
+				writer.write(String.join("\t", Arrays.asList(SpeciesAbundanceParser.COLUMNS)));
+				writer.write('\n');
+			}
+			for (int row : order) {
+				long added = reads[row] / 3;
+				writer.write("Genus" + (row % 997) + " species" + row);
+				writer.write('\t');
+				writer.write(Integer.toString(1000 + row));
+				writer.write("\tS\t");
+				writer.write(Long.toString(reads[row] - added));
+				writer.write('\t');
+				writer.write(Long.toString(added));
+				writer.write('\t');
+				writer.write(Long.toString(reads[row]));
+				writer.write('\t');
+				writer.write(String.format(Locale.ROOT, "%.5f", (double) reads[row] / totalReads));
+				writer.write('\n');
+			}
+		}
+	}
+}
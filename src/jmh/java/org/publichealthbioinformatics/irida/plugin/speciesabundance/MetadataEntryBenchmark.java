@@ -0,0 +1,108 @@
+package org.publichealthbioinformatics.irida.plugin.speciesabundance;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+import ca.corefacility.bioinformatics.irida.model.sample.metadata.MetadataEntry;
+import ca.corefacility.bioinformatics.irida.model.sample.metadata.PipelineProvidedMetadataEntry;
+import ca.corefacility.bioinformatics.irida.model.sequenceFile.SingleEndSequenceFile;
+import ca.corefacility.bioinformatics.irida.model.workflow.submission.AnalysisSubmission;
+
+/**
+ * Benchmarks building the metadata entries of the reported species with
+ * {@link SpeciesAbundancePluginUpdater#addSpeciesEntries}, into a map sized as
+ * the updater sizes it, against {@link #previous()}, the loop the updater used
+ * before. Run with <code>-prof gc</code> to compare the bytes allocated per
+ * update (<code>gc.alloc.rate.norm</code>).
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetadataEntryBenchmark {
+
+	@Param({ "5", "20", "100" })
+	public int topN;
+
+	private MetadataFieldPlan plan;
+	private List<SpeciesAbundance> speciesAbundances;
+	private AnalysisSubmission analysis;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		plan = new MetadataFieldPlan("SpeciesAbundance", ReportingThresholds.MAX_TOP_N);
+		speciesAbundances = new ArrayList<>(topN);
+		for (int i = 0; i < topN; i++) {
+			speciesAbundances.add(new SpeciesAbundance("Species " + i, 1000 + i, "S", 100, 10, 110,
+					String.format(Locale.ROOT, "%.5f", 1.0 / (i + 2))));
+		}
+		analysis = AnalysisSubmission.builder(UUID.randomUUID())
+				.inputFiles(ImmutableSet.of(new SingleEndSequenceFile(null))).build();
+	}
+
+	@Benchmark
+	public Map<String, MetadataEntry> addSpeciesEntries() {
+		Map<String, MetadataEntry> metadataEntries = Maps.newHashMapWithExpectedSize(
+				plan.getMaxEntries(speciesAbundances.size(), false, true));
+		SpeciesAbundancePluginUpdater.addSpeciesEntries(metadataEntries, plan, speciesAbundances, null, analysis);
+		return metadataEntries;
+	}
+
+	/**
+	 * The loop which built the entries before
+	 * {@link SpeciesAbundancePluginUpdater#addSpeciesEntries}, kept as it was
+	 * (without lineage, which neither benchmark adds): a default-sized map, and a
+	 * taxonomy_level entry created for every species but kept only for the first.
+	 *
+	 * @return The metadata entries.
+	 */
+	@Benchmark
+	public Map<String, MetadataEntry> previous() {
+		Map<String, MetadataEntry> metadataEntries = new HashMap<>();
+
+		int speciesNum = 1;
+		for (SpeciesAbundance species : speciesAbundances) {
+			String key;
+			String value;
+			PipelineProvidedMetadataEntry entry;
+
+			value = species.getTaxonomyLevel();
+			entry = new PipelineProvidedMetadataEntry(value, "text", analysis);
+			// taxonomy_level is only recorded once per sample. (should be identical for all lines in a report.)
+			if (speciesNum == 1) {
+				key = plan.getTaxonomyLevelKey();
+				metadataEntries.put(key, entry);
+			}
+
+			value = species.getName();
+			entry = new PipelineProvidedMetadataEntry(value, "text", analysis);
+			key = plan.getTaxonNameKey(speciesNum - 1);
+			metadataEntries.put(key, entry);
+
+			value = Integer.toString(species.getTaxonomyId());
+			entry = new PipelineProvidedMetadataEntry(value, "text", analysis);
+			key = plan.getTaxonomyIdKey(speciesNum - 1);
+			metadataEntries.put(key, entry);
+
+			value = species.getFractionTotalReadsText();
+			entry = new PipelineProvidedMetadataEntry(value, "float", analysis);
+			key = plan.getProportionKey(speciesNum - 1);
+			metadataEntries.put(key, entry);
+
+			speciesNum++;
+		}
+		return metadataEntries;
+	}
+}
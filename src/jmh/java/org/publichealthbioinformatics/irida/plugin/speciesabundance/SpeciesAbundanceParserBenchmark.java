@@ -0,0 +1,51 @@
+package org.publichealthbioinformatics.irida.plugin.speciesabundance;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks {@link SpeciesAbundancePluginUpdater#parseSpeciesAbundanceFile(Path)}
+ * against generated Bracken reports of various sizes and shapes.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SpeciesAbundanceParserBenchmark {
+
+	@Param({ "10", "1000", "100000", "1000000" })
+	public int rows;
+
+	@Param({ "true", "false" })
+	public boolean sorted;
+
+	@Param({ "true", "false" })
+	public boolean header;
+
+	private Path speciesAbundanceFilePath;
+	private SpeciesAbundancePluginUpdater updater;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		speciesAbundanceFilePath = Files.createTempFile("species_abundance", ".tsv");
+		BrackenReportGenerator.write(speciesAbundanceFilePath, rows, sorted, header);
+		updater = new SpeciesAbundancePluginUpdater(null, null, null);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(speciesAbundanceFilePath);
+	}
+
+	@Benchmark
+	public List<SpeciesAbundance> parseSpeciesAbundanceFile() throws IOException {
+		return updater.parseSpeciesAbundanceFile(speciesAbundanceFilePath);
+	}
+}
@@ -0,0 +1,103 @@
+package org.publichealthbioinformatics.irida.plugin.speciesabundance;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import ca.corefacility.bioinformatics.irida.model.sample.Sample;
+import ca.corefacility.bioinformatics.irida.model.sequenceFile.SingleEndSequenceFile;
+import ca.corefacility.bioinformatics.irida.model.workflow.IridaWorkflow;
+import ca.corefacility.bioinformatics.irida.model.workflow.analysis.Analysis;
+import ca.corefacility.bioinformatics.irida.model.workflow.analysis.AnalysisOutputFile;
+import ca.corefacility.bioinformatics.irida.model.workflow.description.IridaWorkflowDescription;
+import ca.corefacility.bioinformatics.irida.model.workflow.submission.AnalysisSubmission;
+import ca.corefacility.bioinformatics.irida.service.sample.MetadataTemplateService;
+import ca.corefacility.bioinformatics.irida.service.sample.SampleService;
+import ca.corefacility.bioinformatics.irida.service.workflow.IridaWorkflowsService;
+
+/**
+ * Benchmarks a full {@link SpeciesAbundancePluginUpdater#update(Collection, AnalysisSubmission)}
+ * against mocked IRIDA services, so only the work done by the plugin is measured.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SpeciesAbundancePluginUpdaterBenchmark {
+
+	@Param({ "10", "1000", "100000", "1000000" })
+	public int rows;
+
+	@Param({ "true", "false" })
+	public boolean sorted;
+
+	@Param({ "true", "false" })
+	public boolean header;
+
+	private Path speciesAbundanceFilePath;
+	private SpeciesAbundancePluginUpdater updater;
+	private Collection<Sample> samples;
+	private AnalysisSubmission submission;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		speciesAbundanceFilePath = Files.createTempFile("species_abundance", ".tsv");
+		BrackenReportGenerator.write(speciesAbundanceFilePath, rows, sorted, header);
+
+		UUID uuid = UUID.randomUUID();
+
+		// stub-only mocks do not record invocations, so they do not grow during a run
+		SampleService sampleService = mock(SampleService.class, withSettings().stubOnly());
+		MetadataTemplateService metadataTemplateService = mock(MetadataTemplateService.class,
+				withSettings().stubOnly());
+		IridaWorkflowsService iridaWorkflowsService = mock(IridaWorkflowsService.class, withSettings().stubOnly());
+		IridaWorkflow iridaWorkflow = mock(IridaWorkflow.class, withSettings().stubOnly());
+		IridaWorkflowDescription iridaWorkflowDescription = mock(IridaWorkflowDescription.class,
+				withSettings().stubOnly());
+
+		when(iridaWorkflowsService.getIridaWorkflow(uuid)).thenReturn(iridaWorkflow);
+		when(iridaWorkflow.getWorkflowDescription()).thenReturn(iridaWorkflowDescription);
+		when(iridaWorkflowDescription.getName()).thenReturn("species-abundance");
+		when(iridaWorkflowDescription.getVersion()).thenReturn("0.2.0");
+		when(metadataTemplateService.convertMetadataStringsToSet(any(Map.class)))
+				.thenAnswer(invocation -> new HashSet<>(((Map<?, ?>) invocation.getArguments()[0]).values()));
+
+		updater = new SpeciesAbundancePluginUpdater(metadataTemplateService, sampleService, iridaWorkflowsService);
+
+		Sample sample = new Sample();
+		sample.setId(1L);
+		samples = Collections.singletonList(sample);
+
+		AnalysisOutputFile speciesAbundanceFile = new AnalysisOutputFile(speciesAbundanceFilePath, null, null, null);
+		submission = AnalysisSubmission.builder(uuid).inputFiles(ImmutableSet.of(new SingleEndSequenceFile(null)))
+				.build();
+		submission.setAnalysis(
+				new Analysis(null, ImmutableMap.of("species_abundance", speciesAbundanceFile), null, null));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(speciesAbundanceFilePath);
+	}
+
+	@Benchmark
+	public void update() throws Exception {
+		updater.update(samples, submission);
+	}
+}
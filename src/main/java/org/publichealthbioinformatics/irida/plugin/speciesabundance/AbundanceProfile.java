@@ -0,0 +1,97 @@
+package org.publichealthbioinformatics.irida.plugin.speciesabundance;
+
+import java.util.Arrays;
+
+/**
+ * The full abundance profile of a sample: every row of a Bracken species
+ * abundance report, stored in columnar primitive arrays in the order the rows
+ * appear in the report.
+ */
+public class AbundanceProfile {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private int size;
+	private int[] taxonomyIds;
+	private long[] estimatedReads;
+	private double[] fractions;
+	private String[] names;
+
+	/**
+	 * Builds a new, empty {@link AbundanceProfile}.
+	 */
+	public AbundanceProfile() {
+		this(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Builds a new, empty {@link AbundanceProfile}.
+	 *
+	 * @param capacity The number of rows to allocate space for.
+	 */
+	public AbundanceProfile(int capacity) {
+		capacity = Math.max(1, capacity);
+		taxonomyIds = new int[capacity];
+		estimatedReads = new long[capacity];
+		fractions = new double[capacity];
+		names = new String[capacity];
+	}
+
+	/**
+	 * Adds a row to the end of the profile.
+	 *
+	 * @param taxonomyId     The NCBI taxonomy id of the taxon.
+	 * @param estimatedReads The number of reads estimated by bracken.
+	 * @param fraction       The fraction of the total reads.
+	 * @param name           The scientific name of the taxon.
+	 */
+	public void add(int taxonomyId, long estimatedReads, double fraction, String name) {
+		if (size == taxonomyIds.length) {
+			int capacity = size * 2;
+			taxonomyIds = Arrays.copyOf(taxonomyIds, capacity);
+			this.estimatedReads = Arrays.copyOf(this.estimatedReads, capacity);
+			fractions = Arrays.copyOf(fractions, capacity);
+			names = Arrays.copyOf(names, capacity);
+		}
+		taxonomyIds[size] = taxonomyId;
+		this.estimatedReads[size] = estimatedReads;
+		fractions[size] = fraction;
+		names[size] = name;
+		size++;
+	}
+
+	/**
+	 * The number of rows (taxa) in the profile.
+	 *
+	 * @return The number of rows.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int getTaxonomyId(int row) {
+		checkRow(row);
+		return taxonomyIds[row];
+	}
+
+	public long getEstimatedReads(int row) {
+		checkRow(row);
+		return estimatedReads[row];
+	}
+
+	public double getFraction(int row) {
+		checkRow(row);
+		return fractions[row];
+	}
+
+	public String getName(int row) {
+		checkRow(row);
+		return names[row];
+	}
+
+	private void checkRow(int row) {
+		if (row < 0 || row >= size) {
+			throw new IndexOutOfBoundsException("row=" + row + ", size=" + size);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package org.publichealthbioinformatics.irida.plugin.speciesabundance;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small, thread-safe cache which holds at most a fixed number of entries,
+ * evicting the least recently used entry when it is full.
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ */
+class BoundedLruCache<K, V> {
+
+	private final int maxSize;
+	private final LinkedHashMap<K, V> entries;
+
+	/**
+	 * Builds a new {@link BoundedLruCache}.
+	 *
+	 * @param maxSize The maximum number of entries to hold.
+	 */
+	BoundedLruCache(int maxSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize=" + maxSize + " must be at least 1");
+		}
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				return size() > BoundedLruCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Gets a value from the cache, marking it as recently used.
+	 *
+	 * @param key The key.
+	 * @return The value, or null if it is not in the cache.
+	 */
+	synchronized V get(K key) {
+		return entries.get(key);
+	}
+
+	/**
+	 * Adds a value to the cache, evicting the least recently used value if the
+	 * cache is full.
+	 *
+	 * @param key   The key.
+	 * @param value The value.
+	 */
+	synchronized void put(K key, V value) {
+		entries.put(key, value);
+	}
+}
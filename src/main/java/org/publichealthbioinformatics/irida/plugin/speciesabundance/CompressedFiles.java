@@ -0,0 +1,183 @@
+package org.publichealthbioinformatics.irida.plugin.speciesabundance;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens analysis output files which may have been compressed by Galaxy. The
+ * compression is detected from the magic bytes at the start of the file
+ * (rather than the file name, which Galaxy does not preserve) and the file is
+ * decompressed as it is read, without writing an uncompressed copy.
+ */
+final class CompressedFiles {
+
+	/**
+	 * The kinds of compression which can be detected.
+	 */
+	enum Compression {
+		NONE, GZIP, ZSTD
+	}
+
+	private static final byte[] GZIP_MAGIC = { (byte) 0x1f, (byte) 0x8b };
+	private static final byte[] ZSTD_MAGIC = { (byte) 0x28, (byte) 0xb5, (byte) 0x2f, (byte) 0xfd };
+
+	private static final int BUFFER_SIZE = 65536;
+
+	/**
+	 * The largest buffer {@link #readFully(Path)} starts with, in bytes.
+	 */
+	static final int MAX_INITIAL_SIZE = 16 * 1024 * 1024;
+
+	private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+	private CompressedFiles() {
+	}
+
+	/**
+	 * Detects the compression of a stream from its first bytes. The stream must
+	 * support mark/reset, and is left at its original position.
+	 *
+	 * @param input An {@link InputStream} supporting mark/reset.
+	 * @return The {@link Compression} of the stream.
+	 * @throws IOException If there was an error reading the stream.
+	 */
+	static Compression detect(InputStream input) throws IOException {
+		byte[] magic = new byte[ZSTD_MAGIC.length];
+		input.mark(magic.length);
+		int length = 0;
+		int read;
+		while (length < magic.length && (read = input.read(magic, length, magic.length - length)) > 0) {
+			length += read;
+		}
+		input.reset();
+
+		if (startsWith(magic, length, GZIP_MAGIC)) {
+			return Compression.GZIP;
+		} else if (startsWith(magic, length, ZSTD_MAGIC)) {
+			return Compression.ZSTD;
+		} else {
+			return Compression.NONE;
+		}
+	}
+
+	private static boolean startsWith(byte[] bytes, int length, byte[] prefix) {
+		if (length < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (bytes[i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Opens a (possibly compressed) file. Uncompressed files are returned as-is,
+	 * gzip files (including BGZF files, which are a series of gzip members) are
+	 * decompressed as they are read.
+	 *
+	 * @param input The {@link InputStream} of the file, which is closed along
+	 *              with the returned stream.
+	 * @param file  The file, for error messages.
+	 * @return An {@link InputStream} of the uncompressed contents.
+	 * @throws IOException If the file uses an unsupported compression, or there
+	 *                     was an error reading it.
+	 */
+	static InputStream decompress(InputStream input, Path file) throws IOException {
+		InputStream buffered = new BufferedInputStream(input, BUFFER_SIZE);
+		try {
+			switch (detect(buffered)) {
+			case GZIP:
+				return new GZIPInputStream(buffered, BUFFER_SIZE);
+			case ZSTD:
+				throw new IOException("File " + file + " is zstd-compressed, which is not supported");
+			default:
+				return buffered;
+			}
+		} catch (IOException | RuntimeException e) {
+			buffered.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks whether a file starts with the magic bytes of any
+	 * {@link Compression}.
+	 *
+	 * @param file The file.
+	 * @return The {@link Compression} of the file.
+	 * @throws IOException If there was an error reading the file.
+	 */
+	static Compression detect(Path file) throws IOException {
+		try (InputStream input = new BufferedInputStream(Files.newInputStream(file), ZSTD_MAGIC.length)) {
+			return detect(input);
+		}
+	}
+
+	/**
+	 * Decompresses a whole file into memory. The returned buffer holds the whole
+	 * uncompressed contents on the heap (up to 2 GB), so this is only used for
+	 * files which need random access, such as kraken2 reports. The buffer starts
+	 * at the size recorded in the gzip trailer, but no larger than
+	 * {@value #MAX_INITIAL_SIZE} bytes, and grows as the file is read, so a
+	 * large or corrupt file does not reserve a huge array up-front.
+	 *
+	 * @param file The (compressed) file.
+	 * @return A heap {@link ByteBuffer} of the uncompressed contents.
+	 * @throws IOException If there was an error reading the file.
+	 */
+	static ByteBuffer readFully(Path file) throws IOException {
+		int initialSize = (int) Math.max(BUFFER_SIZE, Math.min(MAX_INITIAL_SIZE, readGzipSizeHint(file)));
+		try (InputStream input = decompress(Files.newInputStream(file), file)) {
+			byte[] bytes = new byte[initialSize];
+			int length = 0;
+			int read;
+			while ((read = input.read(bytes, length, bytes.length - length)) >= 0) {
+				length += read;
+				if (length == bytes.length) {
+					if (bytes.length >= MAX_ARRAY_SIZE) {
+						throw new IOException("File " + file + " is too large to decompress into memory");
+					}
+					bytes = Arrays.copyOf(bytes, (int) Math.min(MAX_ARRAY_SIZE, bytes.length * 2L));
+				}
+			}
+			return ByteBuffer.wrap(bytes, 0, length);
+		}
+	}
+
+	/**
+	 * Reads the uncompressed size recorded in the trailer of a gzip file (ISIZE,
+	 * the size modulo 2^32). For a file of several gzip members, such as a BGZF
+	 * file, this is only the size of the last member, so it is only a hint.
+	 *
+	 * @param file The gzip file.
+	 * @return The size from the trailer, or 0 if the file is too short to have
+	 *         one.
+	 * @throws IOException If there was an error reading the file.
+	 */
+	private static long readGzipSizeHint(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < GZIP_MAGIC.length + Integer.BYTES) {
+				return 0;
+			}
+			ByteBuffer trailer = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			while (trailer.hasRemaining()) {
+				if (channel.read(trailer, size - Integer.BYTES + trailer.position()) < 0) {
+					return 0;
+				}
+			}
+			return Integer.toUnsignedLong(trailer.getInt(0));
+		}
+	}
+}
@@ -0,0 +1,410 @@
+package org.publichealthbioinformatics.irida.plugin.speciesabundance;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A compact index of the full taxonomic tree in a kraken2 report. The report is
+ * read directly from a memory-mapped file and each node of the tree is stored
+ * in a set of primitive arrays, indexed by the position of the node in the
+ * report. Names are not decoded until they are asked for. Compressed reports
+ * are supported (see {@link CompressedFiles}), but cannot be mapped: they are
+ * decompressed onto the heap, which then holds the whole uncompressed report
+ * for as long as the index is used.
+ *
+ * <p>
+ * A kraken2 report looks like (with optional minimizer columns between the
+ * read counts and the rank code):
+ * </p>
+ *
+ * <pre>
+ * 99.25	2557000	2557000	U	0	unclassified
+ *  0.75	19370	2	R	1	root
+ *  0.75	19368	0	R1	131567	  cellular organisms
+ * </pre>
+ */
+public class Kraken2ReportIndex {
+
+	/**
+	 * Rank code for reads which were not classified.
+	 */
+	public static final char UNCLASSIFIED = 'U';
+	public static final char ROOT = 'R';
+	public static final char DOMAIN = 'D';
+	public static final char KINGDOM = 'K';
+	public static final char PHYLUM = 'P';
+	public static final char CLASS = 'C';
+	public static final char ORDER = 'O';
+	public static final char FAMILY = 'F';
+	public static final char GENUS = 'G';
+	public static final char SPECIES = 'S';
+
+	private static final int NO_PARENT = -1;
+
+	/**
+	 * A rough estimate of the length of a line in a report, used to size the
+	 * arrays up-front.
+	 */
+	private static final int ESTIMATED_LINE_LENGTH = 48;
+
+	private final ByteBuffer source;
+	private final long bytesRead;
+	private int size;
+	private int[] taxonomyIds;
+	private int[] parents;
+	private long[] cladeReads;
+	private long[] directReads;
+	private byte[] ranks;
+	private byte[] rankDepths;
+	private int[] nameOffsets;
+	private int[] nameLengths;
+	private long totalReads;
+	private long unclassifiedReads;
+
+	private Kraken2ReportIndex(ByteBuffer source, long bytesRead) {
+		this.source = source;
+		this.bytesRead = bytesRead;
+		int capacity = Math.max(16, source.remaining() / ESTIMATED_LINE_LENGTH);
+		taxonomyIds = new int[capacity];
+		parents = new int[capacity];
+		cladeReads = new long[capacity];
+		directReads = new long[capacity];
+		ranks = new byte[capacity];
+		rankDepths = new byte[capacity];
+		nameOffsets = new int[capacity];
+		nameLengths = new int[capacity];
+	}
+
+	/**
+	 * Reads a kraken2 report by memory-mapping the passed file. A
+	 * gzip-compressed report is instead decompressed into a heap buffer the size
+	 * of the uncompressed report (typically several times the size of the file).
+	 *
+	 * @param kraken2ReportFilePath The kraken2 report file.
+	 * @return A {@link Kraken2ReportIndex} of the report.
+	 * @throws IOException If there was an error reading the file.
+	 */
+	public static Kraken2ReportIndex read(Path kraken2ReportFilePath) throws IOException {
+		if (CompressedFiles.detect(kraken2ReportFilePath) != CompressedFiles.Compression.NONE) {
+			// bytes read are counted from the file on disk, as for species abundance files
+			long compressedLength = Files.size(kraken2ReportFilePath);
+			return read(CompressedFiles.readFully(kraken2ReportFilePath), compressedLength);
+		}
+		try (FileChannel channel = FileChannel.open(kraken2ReportFilePath, StandardOpenOption.READ)) {
+			long length = channel.size();
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException("kraken2 report " + kraken2ReportFilePath + " is too large (" + length + " bytes)");
+			}
+			// the mapping remains valid after the channel is closed
+			return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+		}
+	}
+
+	/**
+	 * Reads a kraken2 report from the passed buffer, between its position and
+	 * limit. The buffer is retained to decode names and must not be modified.
+	 *
+	 * @param report A {@link ByteBuffer} containing the report.
+	 * @return A {@link Kraken2ReportIndex} of the report.
+	 * @throws IOException If the report is malformed.
+	 */
+	public static Kraken2ReportIndex read(ByteBuffer report) throws IOException {
+		return read(report, report.remaining());
+	}
+
+	private static Kraken2ReportIndex read(ByteBuffer report, long bytesRead) throws IOException {
+		Kraken2ReportIndex index = new Kraken2ReportIndex(report, bytesRead);
+		index.parse();
+		return index;
+	}
+
+	private void parse() throws IOException {
+		int[] fieldStarts = new int[8];
+		int[] fieldEnds = new int[8];
+		int[] lastAtDepth = new int[64];
+		int lineNumber = 0;
+
+		int end = source.limit();
+		int lineStart = source.position();
+		while (lineStart < end) {
+			int lineEnd = lineStart;
+			while (lineEnd < end && source.get(lineEnd) != '\n') {
+				lineEnd++;
+			}
+			int next = lineEnd + 1;
+			if (lineEnd > lineStart && source.get(lineEnd - 1) == '\r') {
+				lineEnd--;
+			}
+			lineNumber++;
+
+			if (lineEnd > lineStart) {
+				// every field is counted, so a line with extra columns is rejected rather than misread
+				int fieldCount = 0;
+				int fieldStart = lineStart;
+				for (int i = lineStart; i <= lineEnd; i++) {
+					if (i == lineEnd || source.get(i) == '\t') {
+						if (fieldCount < fieldStarts.length) {
+							fieldStarts[fieldCount] = fieldStart;
+							fieldEnds[fieldCount] = i;
+						}
+						fieldCount++;
+						fieldStart = i + 1;
+					}
+				}
+				if (fieldCount != 6 && fieldCount != 8) {
+					throw new IOException("Line " + lineNumber + " of kraken2 report has " + fieldCount
+							+ " columns, expected 6 or 8");
+				}
+
+				int rank = fieldCount - 3;
+				int taxonomyId = fieldCount - 2;
+				int name = fieldCount - 1;
+
+				int nameStart = fieldStarts[name];
+				while (nameStart < fieldEnds[name] && source.get(nameStart) == ' ') {
+					nameStart++;
+				}
+				int depth = (nameStart - fieldStarts[name]) / 2;
+				if (depth >= lastAtDepth.length) {
+					lastAtDepth = Arrays.copyOf(lastAtDepth, depth * 2);
+				}
+
+				ensureCapacity(size + 1);
+				taxonomyIds[size] = parseInt(fieldStarts[taxonomyId], fieldEnds[taxonomyId], lineNumber);
+				parents[size] = depth == 0 ? NO_PARENT : lastAtDepth[depth - 1];
+				cladeReads[size] = parseLong(fieldStarts[1], fieldEnds[1], lineNumber);
+				directReads[size] = parseLong(fieldStarts[2], fieldEnds[2], lineNumber);
+				ranks[size] = source.get(fieldStarts[rank]);
+				int rankDepth = fieldEnds[rank] - fieldStarts[rank] > 1
+						? parseInt(fieldStarts[rank] + 1, fieldEnds[rank], lineNumber)
+						: 0;
+				if (rankDepth > Byte.MAX_VALUE) {
+					throw new IOException("Line " + lineNumber + " of kraken2 report has a rank out of range");
+				}
+				rankDepths[size] = (byte) rankDepth;
+				nameOffsets[size] = nameStart;
+				nameLengths[size] = fieldEnds[name] - nameStart;
+
+				if (depth == 0) {
+					totalReads += cladeReads[size];
+				}
+				if (ranks[size] == UNCLASSIFIED) {
+					unclassifiedReads += cladeReads[size];
+				}
+				lastAtDepth[depth] = size;
+				size++;
+			}
+			lineStart = next;
+		}
+
+		taxonomyIds = Arrays.copyOf(taxonomyIds, size);
+		parents = Arrays.copyOf(parents, size);
+		cladeReads = Arrays.copyOf(cladeReads, size);
+		directReads = Arrays.copyOf(directReads, size);
+		ranks = Arrays.copyOf(ranks, size);
+		rankDepths = Arrays.copyOf(rankDepths, size);
+		nameOffsets = Arrays.copyOf(nameOffsets, size);
+		nameLengths = Arrays.copyOf(nameLengths, size);
+	}
+
+	private long parseLong(int start, int end, int lineNumber) throws IOException {
+		while (start < end && source.get(start) == ' ') {
+			start++;
+		}
+		if (start == end) {
+			throw new IOException("Line " + lineNumber + " of kraken2 report has an empty number");
+		}
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			byte b = source.get(i);
+			if (b < '0' || b > '9') {
+				throw new IOException("Line " + lineNumber + " of kraken2 report has an invalid number");
+			}
+			if (value > (Long.MAX_VALUE - (b - '0')) / 10) {
+				throw new IOException("Line " + lineNumber + " of kraken2 report has a number out of range");
+			}
+			value = value * 10 + (b - '0');
+		}
+		return value;
+	}
+
+	private int parseInt(int start, int end, int lineNumber) throws IOException {
+		long value = parseLong(start, end, lineNumber);
+		if (value > Integer.MAX_VALUE) {
+			throw new IOException("Line " + lineNumber + " of kraken2 report has a number out of range");
+		}
+		return (int) value;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > taxonomyIds.length) {
+			int newCapacity = Math.max(capacity, taxonomyIds.length * 2);
+			taxonomyIds = Arrays.copyOf(taxonomyIds, newCapacity);
+			parents = Arrays.copyOf(parents, newCapacity);
+			cladeReads = Arrays.copyOf(cladeReads, newCapacity);
+			directReads = Arrays.copyOf(directReads, newCapacity);
+			ranks = Arrays.copyOf(ranks, newCapacity);
+			rankDepths = Arrays.copyOf(rankDepths, newCapacity);
+			nameOffsets = Arrays.copyOf(nameOffsets, newCapacity);
+			nameLengths = Arrays.copyOf(nameLengths, newCapacity);
+		}
+	}
+
+	/**
+	 * The number of nodes (lines) in the report.
+	 *
+	 * @return The number of nodes.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the NCBI taxonomy id of the given node.
+	 *
+	 * @param node The node.
+	 * @return The taxonomy id, 0 for unclassified reads.
+	 */
+	public int getTaxonomyId(int node) {
+		return taxonomyIds[node];
+	}
+
+	/**
+	 * Gets the parent of the given node.
+	 *
+	 * @param node The node.
+	 * @return The index of the parent node, or -1 if the node is at the top of
+	 *         the tree (e.g. 'root' or 'unclassified').
+	 */
+	public int getParent(int node) {
+		return parents[node];
+	}
+
+	/**
+	 * Gets the number of reads assigned to the clade rooted at the given node.
+	 *
+	 * @param node The node.
+	 * @return The number of reads in the clade.
+	 */
+	public long getCladeReads(int node) {
+		return cladeReads[node];
+	}
+
+	/**
+	 * Gets the number of reads assigned directly to the given node.
+	 *
+	 * @param node The node.
+	 * @return The number of reads assigned directly to the node.
+	 */
+	public long getDirectReads(int node) {
+		return directReads[node];
+	}
+
+	/**
+	 * Gets the rank code of the given node, without any depth (e.g. 'S' for both
+	 * 'S' and 'S1').
+	 *
+	 * @param node The node.
+	 * @return The rank code.
+	 */
+	public char getRank(int node) {
+		return (char) ranks[node];
+	}
+
+	/**
+	 * Gets the depth below the rank of the given node (e.g. 1 for 'S1').
+	 *
+	 * @param node The node.
+	 * @return The depth below the rank code, 0 for a named rank.
+	 */
+	public int getRankDepth(int node) {
+		return rankDepths[node];
+	}
+
+	/**
+	 * Decodes the scientific name of the given node.
+	 *
+	 * @param node The node.
+	 * @return The name, without indentation.
+	 */
+	public String getName(int node) {
+		byte[] name = new byte[nameLengths[node]];
+		for (int i = 0; i < name.length; i++) {
+			name[i] = source.get(nameOffsets[node] + i);
+		}
+		return new String(name, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The number of bytes read from the report file. For a compressed file this
+	 * is the compressed size, as for {@link SpeciesAbundanceParser}.
+	 *
+	 * @return The number of bytes read.
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * The total number of reads in the report, classified or not.
+	 *
+	 * @return The total number of reads.
+	 */
+	public long getTotalReads() {
+		return totalReads;
+	}
+
+	/**
+	 * The number of reads which were not classified.
+	 *
+	 * @return The number of unclassified reads.
+	 */
+	public long getUnclassifiedReads() {
+		return unclassifiedReads;
+	}
+
+	/**
+	 * The fraction of all reads which were not classified.
+	 *
+	 * @return The unclassified fraction, or 0 if the report has no reads.
+	 */
+	public double getUnclassifiedFraction() {
+		return totalReads == 0 ? 0.0 : (double) unclassifiedReads / totalReads;
+	}
+
+	/**
+	 * The fraction of all reads assigned to the clade rooted at the given node.
+	 *
+	 * @param node The node.
+	 * @return The fraction of all reads in the clade, or 0 if the report has no
+	 *         reads.
+	 */
+	public double getCladeFraction(int node) {
+		return totalReads == 0 ? 0.0 : (double) cladeReads[node] / totalReads;
+	}
+
+	/**
+	 * Finds the node at the given (named) rank with the most reads in its clade.
+	 *
+	 * @param rank The rank code (e.g. {@link #GENUS}).
+	 * @return The index of the node, or -1 if there are no nodes at the rank
+	 *         with any reads.
+	 */
+	public int findMostAbundant(char rank) {
+		int mostAbundant = -1;
+		long mostReads = 0;
+		for (int node = 0; node < size; node++) {
+			if (ranks[node] == rank && rankDepths[node] == 0 && cladeReads[node] > mostReads) {
+				mostAbundant = node;
+				mostReads = cladeReads[node];
+			}
+		}
+		return mostAbundant;
+	}
+}
@@ -0,0 +1,206 @@
+package org.publichealthbioinformatics.irida.plugin.speciesabundance;
+
+import java.util.Map;
+import java.util.Set;
+
+import ca.corefacility.bioinformatics.irida.model.sample.MetadataTemplateField;
+import ca.corefacility.bioinformatics.irida.service.sample.MetadataTemplateService;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+/**
+ * The metadata keys written for a particular workflow, computed once. Only the
+ * (interned) keys are kept: the {@link MetadataTemplateField}s they name are
+ * database entities, so they are resolved by
+ * {@link MetadataTemplateService#convertMetadataStringsToSet(Map)} in the
+ * transaction of each update rather than held across transactions.
+ */
+class MetadataFieldPlan {
+
+	private final String workflowName;
+
+	private final String taxonomyLevelKey;
+	private final String[] taxonNameKeys;
+	private final String[] taxonomyIdKeys;
+	private final String[] proportionKeys;
+	private final String[] genusKeys;
+	private final String[] familyKeys;
+	private final Set<String> speciesKeys;
+
+	private final String unclassifiedProportionKey;
+	private final String topGenusKey;
+	private final String topGenusProportionKey;
+	private final String topFamilyKey;
+	private final String topFamilyProportionKey;
+
+	private final String kraken2ClassifiedProportionKey;
+	private final String brackenSpeciesProportionKey;
+	private final String brackenReassignedProportionKey;
+	private final Set<String> kraken2Keys;
+
+	/**
+	 * Builds a new {@link MetadataFieldPlan}.
+	 *
+	 * @param workflowName The name of the workflow, used to prefix the keys.
+	 * @param numSpecies   The number of species reported for each sample.
+	 */
+	MetadataFieldPlan(String workflowName, int numSpecies) {
+		this.workflowName = workflowName;
+
+		taxonomyLevelKey = key("taxonomy_level");
+		taxonNameKeys = new String[numSpecies];
+		taxonomyIdKeys = new String[numSpecies];
+		proportionKeys = new String[numSpecies];
+		genusKeys = new String[numSpecies];
+		familyKeys = new String[numSpecies];
+		speciesKeys = Sets.newHashSetWithExpectedSize(1 + numSpecies * 5);
+		speciesKeys.add(taxonomyLevelKey);
+		for (int i = 0; i < numSpecies; i++) {
+			// the most abundant species has no suffix
+			String suffix = i == 0 ? "" : "_" + (i + 1);
+			taxonNameKeys[i] = key("taxon_name" + suffix);
+			taxonomyIdKeys[i] = key("taxonomy_id" + suffix);
+			proportionKeys[i] = key("proportion" + suffix);
+			genusKeys[i] = key("genus" + suffix);
+			familyKeys[i] = key("family" + suffix);
+			speciesKeys.add(taxonNameKeys[i]);
+			speciesKeys.add(taxonomyIdKeys[i]);
+			speciesKeys.add(proportionKeys[i]);
+			speciesKeys.add(genusKeys[i]);
+			speciesKeys.add(familyKeys[i]);
+		}
+
+		unclassifiedProportionKey = key("unclassified_proportion");
+		topGenusKey = key("top_genus");
+		topGenusProportionKey = key("top_genus_proportion");
+		topFamilyKey = key("top_family");
+		topFamilyProportionKey = key("top_family_proportion");
+
+		kraken2ClassifiedProportionKey = key("kraken2_classified_proportion");
+		brackenSpeciesProportionKey = key("bracken_species_proportion");
+		brackenReassignedProportionKey = key("bracken_reassigned_proportion");
+		kraken2Keys = ImmutableSet.of(unclassifiedProportionKey, topGenusKey, topGenusProportionKey, topFamilyKey,
+				topFamilyProportionKey, kraken2ClassifiedProportionKey, brackenSpeciesProportionKey,
+				brackenReassignedProportionKey);
+	}
+
+	private String key(String field) {
+		return (workflowName + "/" + field).intern();
+	}
+
+	String getWorkflowName() {
+		return workflowName;
+	}
+
+	String getTaxonomyLevelKey() {
+		return taxonomyLevelKey;
+	}
+
+	/**
+	 * Whether a key is the taxonomy level, or a field of a reported species at
+	 * any rank, so an entry for it left by a previous analysis should be cleared
+	 * when an analysis does not write it.
+	 *
+	 * @param key The key (or field label).
+	 * @return True if the key is one of the species keys of this plan.
+	 */
+	boolean isSpeciesKey(String key) {
+		return speciesKeys.contains(key);
+	}
+
+	/**
+	 * Whether a key is a summary of the kraken2 report, or a quality metric
+	 * comparing it with the species abundance file, so an entry for it left by a
+	 * previous analysis should be cleared when an analysis does not write it.
+	 *
+	 * @param key The key (or field label).
+	 * @return True if the key is one of the kraken2 keys of this plan.
+	 */
+	boolean isKraken2Key(String key) {
+		return kraken2Keys.contains(key);
+	}
+
+	/**
+	 * The largest number of metadata entries which may be built for a sample,
+	 * used to size the map holding them.
+	 *
+	 * @param numSpecies    The number of species reported.
+	 * @param lineage       Whether lineage fields are added for each species.
+	 * @param kraken2Report Whether the analysis has a kraken2 report.
+	 * @return The maximum number of entries.
+	 */
+	int getMaxEntries(int numSpecies, boolean lineage, boolean kraken2Report) {
+		// taxonomy_level, then the name, id and proportion (and genus and family) of each species
+		int entries = 1 + numSpecies * (lineage ? 5 : 3);
+		if (kraken2Report) {
+			// unclassified proportion, top genus and family with their proportions, and three quality metrics
+			entries += 8;
+		}
+		return entries;
+	}
+
+	/**
+	 * Gets the key for the name of a species.
+	 *
+	 * @param rank The (zero-based) rank of the species, by abundance.
+	 * @return The key.
+	 */
+	String getTaxonNameKey(int rank) {
+		return taxonNameKeys[rank];
+	}
+
+	String getTaxonomyIdKey(int rank) {
+		return taxonomyIdKeys[rank];
+	}
+
+	String getProportionKey(int rank) {
+		return proportionKeys[rank];
+	}
+
+	/**
+	 * Gets the key for the genus (from the taxonomy lineage) of a species.
+	 *
+	 * @param rank The (zero-based) rank of the species, by abundance.
+	 * @return The key.
+	 */
+	String getGenusKey(int rank) {
+		return genusKeys[rank];
+	}
+
+	String getFamilyKey(int rank) {
+		return familyKeys[rank];
+	}
+
+	String getUnclassifiedProportionKey() {
+		return unclassifiedProportionKey;
+	}
+
+	String getTopGenusKey() {
+		return topGenusKey;
+	}
+
+	String getTopGenusProportionKey() {
+		return topGenusProportionKey;
+	}
+
+	String getTopFamilyKey() {
+		return topFamilyKey;
+	}
+
+	String getTopFamilyProportionKey() {
+		return topFamilyProportionKey;
+	}
+
+	String getKraken2ClassifiedProportionKey() {
+		return kraken2ClassifiedProportionKey;
+	}
+
+	String getBrackenSpeciesProportionKey() {
+		return brackenSpeciesProportionKey;
+	}
+
+	String getBrackenReassignedProportionKey() {
+		return brackenReassignedProportionKey;
+	}
+}
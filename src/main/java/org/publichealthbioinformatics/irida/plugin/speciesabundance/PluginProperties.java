@@ -0,0 +1,102 @@
+package org.publichealthbioinformatics.irida.plugin.speciesabundance;
+
+/**
+ * Optional settings for this plugin, read from Java system properties (e.g.
+ * <code>-Dspecies-abundance.report.top-n=10</code> in the options used to start
+ * IRIDA). IRIDA has no way to configure a plugin, so every setting has a
+ * default which keeps the original behaviour.
+ */
+final class PluginProperties {
+
+	static final String PREFIX = "species-abundance.";
+
+	/**
+	 * A directory containing an NCBI taxonomy dump (<code>nodes.dmp</code> and
+	 * <code>names.dmp</code>), used to add the lineage of reported species. No
+	 * lineage is added when unset.
+	 */
+	static final String TAXONOMY_DIRECTORY = PREFIX + "taxonomy.directory";
+
+	/**
+	 * A directory to keep the binary cache of the taxonomy in. The cache is kept
+	 * under the system temporary directory when unset.
+	 */
+	static final String TAXONOMY_CACHE_DIRECTORY = PREFIX + "taxonomy.cache-directory";
+
+	/**
+	 * A directory to write a {@link ProfileSidecar} of each sample's full
+	 * profile to. No sidecars are written when unset.
+	 */
+	static final String PROFILE_SIDECAR_DIRECTORY = PREFIX + "profile-sidecars.directory";
+
+	/**
+	 * The number of most abundant species to report, between 1 and
+	 * {@link ReportingThresholds#MAX_TOP_N}.
+	 */
+	static final String REPORT_TOP_N = PREFIX + "report.top-n";
+
+	/**
+	 * The minimum fraction_total_reads of a reported species.
+	 */
+	static final String REPORT_MIN_FRACTION = PREFIX + "report.min-fraction-total-reads";
+
+	/**
+	 * The minimum new_est_reads of a reported species.
+	 */
+	static final String REPORT_MIN_READS = PREFIX + "report.min-new-est-reads";
+
+	/**
+	 * Whether species abundance files are sorted from most to least abundant (as
+	 * Bracken writes them), so parsing can stop early.
+	 */
+	static final String ASSUME_SORTED = PREFIX + "assume-sorted";
+
+	private PluginProperties() {
+	}
+
+	static String getString(String name, String defaultValue) {
+		String value = System.getProperty(name);
+		return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+	}
+
+	static boolean getBoolean(String name, boolean defaultValue) {
+		String value = getString(name, null);
+		return value == null ? defaultValue : Boolean.parseBoolean(value);
+	}
+
+	static int getInt(String name, int defaultValue) {
+		String value = getString(name, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("System property " + name + "=" + value + " is not an integer", e);
+		}
+	}
+
+	static long getLong(String name, long defaultValue) {
+		String value = getString(name, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("System property " + name + "=" + value + " is not an integer", e);
+		}
+	}
+
+	static double getDouble(String name, double defaultValue) {
+		String value = getString(name, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("System property " + name + "=" + value + " is not a number", e);
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package org.publichealthbioinformatics.irida.plugin.speciesabundance;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A compact, binary copy of the full abundance profile of a sample from one
+ * analysis, written to a directory of the plugin's own so that it can be
+ * loaded again without re-parsing the <strong>species_abundance</strong>
+ * text report.
+ *
+ * <p>
+ * The file is little-endian and laid out in columns, with the 8-byte columns
+ * first so that every column is aligned:
+ * </p>
+ *
+ * <pre>
+ * int magic, int version, int rowCount, int namesLength
+ * long[rowCount] estimatedReads
+ * double[rowCount] fractions
+ * int[rowCount] taxonomyIds
+ * int[rowCount + 1] nameOffsets (into the names)
+ * byte[namesLength] names (UTF-8)
+ * </pre>
+ *
+ * <p>
+ * A {@link ProfileSidecar} reads the columns directly from the (memory-mapped)
+ * buffer it was read from, and only decodes a name when it is asked for.
+ * </p>
+ */
+public class ProfileSidecar {
+
+	/**
+	 * The extension of sidecar files.
+	 */
+	public static final String EXTENSION = ".profile";
+
+	private static final int MAGIC = 0x53415046; // "SAPF"
+	static final int VERSION = 1;
+	private static final int HEADER_LENGTH = 4 * Integer.BYTES;
+
+	private final ByteBuffer contents;
+	private final int rowCount;
+	private final int fractionsOffset;
+	private final int taxonomyIdsOffset;
+	private final int nameOffsetsOffset;
+	private final int namesOffset;
+
+	private ProfileSidecar(ByteBuffer contents) throws IOException {
+		this.contents = contents.order(ByteOrder.LITTLE_ENDIAN);
+		if (contents.capacity() < HEADER_LENGTH || contents.getInt(0) != MAGIC) {
+			throw new IOException("Not a species abundance profile");
+		} else if (contents.getInt(Integer.BYTES) != VERSION) {
+			throw new IOException("Unsupported species abundance profile version " + contents.getInt(Integer.BYTES));
+		}
+		rowCount = contents.getInt(2 * Integer.BYTES);
+		int namesLength = contents.getInt(3 * Integer.BYTES);
+		if (rowCount < 0 || namesLength < 0 || getLength(rowCount, namesLength) != contents.capacity()) {
+			throw new IOException("Species abundance profile is truncated");
+		}
+		// the offsets fit in an int now that the length matches the buffer
+		fractionsOffset = HEADER_LENGTH + rowCount * Long.BYTES;
+		taxonomyIdsOffset = fractionsOffset + rowCount * Double.BYTES;
+		nameOffsetsOffset = taxonomyIdsOffset + rowCount * Integer.BYTES;
+		namesOffset = nameOffsetsOffset + (rowCount + 1) * Integer.BYTES;
+
+		// check the name offsets once here so that getName cannot read outside the
+		// names
+		int previous = 0;
+		for (int row = 0; row <= rowCount; row++) {
+			int nameOffset = contents.getInt(nameOffsetsOffset + row * Integer.BYTES);
+			if ((row == 0 && nameOffset != 0) || nameOffset < previous || nameOffset > namesLength
+					|| (row == rowCount && nameOffset != namesLength)) {
+				throw new IOException("Species abundance profile has an invalid name offset " + nameOffset
+						+ " in row " + row);
+			}
+			previous = nameOffset;
+		}
+	}
+
+	/**
+	 * Computes the length of a sidecar file, without overflowing.
+	 *
+	 * @param rowCount    The number of rows.
+	 * @param namesLength The length of the encoded names.
+	 * @return The length of the file, in bytes.
+	 */
+	private static long getLength(long rowCount, long namesLength) {
+		return HEADER_LENGTH + rowCount * (Long.BYTES + Double.BYTES + Integer.BYTES)
+				+ (rowCount + 1) * Integer.BYTES + namesLength;
+	}
+
+	/**
+	 * Gets the sidecar file for the profile of a sample from an analysis.
+	 *
+	 * @param directory    The directory sidecar files are kept in.
+	 * @param sampleId     The id of the sample.
+	 * @param submissionId The id of the analysis submission.
+	 * @return The path of the sidecar file, in a directory for the sample.
+	 */
+	public static Path getSidecarPath(Path directory, long sampleId, long submissionId) {
+		return directory.resolve(Long.toString(sampleId)).resolve(submissionId + EXTENSION);
+	}
+
+	/**
+	 * Writes a profile to a file, replacing it atomically if it exists.
+	 *
+	 * @param profile The {@link AbundanceProfile}.
+	 * @param file    The file to write.
+	 * @throws IOException If there was an error writing the file.
+	 */
+	public static void write(AbundanceProfile profile, Path file) throws IOException {
+		int rowCount = profile.size();
+		byte[][] names = new byte[rowCount][];
+		long namesLength = 0;
+		for (int row = 0; row < rowCount; row++) {
+			String name = profile.getName(row);
+			names[row] = name == null ? new byte[0] : name.getBytes(StandardCharsets.UTF_8);
+			namesLength += names[row].length;
+		}
+		long length = getLength(rowCount, namesLength);
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("Species abundance profile of " + rowCount + " rows is too large ("
+					+ length + " bytes) for a sidecar file");
+		}
+
+		ByteBuffer contents = ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+		contents.putInt(MAGIC).putInt(VERSION).putInt(rowCount).putInt((int) namesLength);
+		for (int row = 0; row < rowCount; row++) {
+			contents.putLong(profile.getEstimatedReads(row));
+		}
+		for (int row = 0; row < rowCount; row++) {
+			contents.putDouble(profile.getFraction(row));
+		}
+		for (int row = 0; row < rowCount; row++) {
+			contents.putInt(profile.getTaxonomyId(row));
+		}
+		int nameOffset = 0;
+		for (int row = 0; row < rowCount; row++) {
+			contents.putInt(nameOffset);
+			nameOffset += names[row].length;
+		}
+		contents.putInt(nameOffset);
+		for (byte[] name : names) {
+			contents.put(name);
+		}
+		contents.flip();
+
+		Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			while (contents.hasRemaining()) {
+				channel.write(contents);
+			}
+		} catch (IOException e) {
+			Files.deleteIfExists(temporaryFile);
+			throw e;
+		}
+		Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Reads a profile by memory-mapping the passed file.
+	 *
+	 * @param file The sidecar file.
+	 * @return The {@link ProfileSidecar}.
+	 * @throws IOException If there was an error reading the file, or it is not a
+	 *                     profile.
+	 */
+	public static ProfileSidecar read(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			try {
+				// the mapping remains valid after the channel is closed
+				return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+			} catch (IOException e) {
+				throw new IOException("Could not read " + file + ": " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Reads a profile from a buffer (between its position and limit), without
+	 * copying it. The buffer must not be modified.
+	 *
+	 * @param contents A {@link ByteBuffer} containing the sidecar file.
+	 * @return The {@link ProfileSidecar}.
+	 * @throws IOException If the buffer does not contain a profile.
+	 */
+	public static ProfileSidecar read(ByteBuffer contents) throws IOException {
+		return new ProfileSidecar(contents.slice());
+	}
+
+	/**
+	 * The number of rows (taxa) in the profile.
+	 *
+	 * @return The number of rows.
+	 */
+	public int size() {
+		return rowCount;
+	}
+
+	public int getTaxonomyId(int row) {
+		return contents.getInt(taxonomyIdsOffset + checkRow(row) * Integer.BYTES);
+	}
+
+	public long getEstimatedReads(int row) {
+		return contents.getLong(HEADER_LENGTH + checkRow(row) * Long.BYTES);
+	}
+
+	public double getFraction(int row) {
+		return contents.getDouble(fractionsOffset + checkRow(row) * Double.BYTES);
+	}
+
+	/**
+	 * Decodes the name of the taxon in a row.
+	 *
+	 * @param row The row.
+	 * @return The scientific name of the taxon.
+	 */
+	public String getName(int row) {
+		int start = contents.getInt(nameOffsetsOffset + checkRow(row) * Integer.BYTES);
+		int end = contents.getInt(nameOffsetsOffset + (row + 1) * Integer.BYTES);
+		byte[] name = new byte[end - start];
+		for (int i = 0; i < name.length; i++) {
+			name[i] = contents.get(namesOffset + start + i);
+		}
+		return new String(name, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Copies the profile into an {@link AbundanceProfile}.
+	 *
+	 * @return The {@link AbundanceProfile}.
+	 */
+	public AbundanceProfile toAbundanceProfile() {
+		AbundanceProfile profile = new AbundanceProfile(rowCount);
+		for (int row = 0; row < rowCount; row++) {
+			profile.add(getTaxonomyId(row), getEstimatedReads(row), getFraction(row), getName(row));
+		}
+		return profile;
+	}
+
+	private int checkRow(int row) {
+		if (row < 0 || row >= rowCount) {
+			throw new IndexOutOfBoundsException("row=" + row + ", size=" + rowCount);
+		}
+		return row;
+	}
+}
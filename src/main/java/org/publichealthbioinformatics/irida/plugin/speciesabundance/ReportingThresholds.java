@@ -0,0 +1,89 @@
+package org.publichealthbioinformatics.irida.plugin.speciesabundance;
+
+import java.util.Locale;
+
+/**
+ * Which species are reported in the metadata of a sample: at most
+ * {@link #getTopN()} of the most abundant species, leaving out any with a
+ * smaller <strong>fraction_total_reads</strong> or fewer
+ * <strong>new_est_reads</strong> than the minimums. These are set for the
+ * whole plugin (see {@link PluginProperties}), and by default are the top
+ * {@value #DEFAULT_TOP_N} species.
+ */
+public final class ReportingThresholds {
+
+	/**
+	 * The number of species reported by default.
+	 */
+	public static final int DEFAULT_TOP_N = 5;
+
+	/**
+	 * The largest number of species which may be reported.
+	 */
+	public static final int MAX_TOP_N = 100;
+
+	/**
+	 * The top {@value #DEFAULT_TOP_N} species, whatever their abundance.
+	 */
+	public static final ReportingThresholds DEFAULT = new ReportingThresholds(DEFAULT_TOP_N, 0.0, 0);
+
+	private final int topN;
+	private final double minimumFraction;
+	private final long minimumReads;
+
+	/**
+	 * Builds a new {@link ReportingThresholds}.
+	 *
+	 * @param topN            The maximum number of species to report.
+	 * @param minimumFraction The minimum fraction_total_reads of a reported
+	 *                        species.
+	 * @param minimumReads    The minimum new_est_reads of a reported species.
+	 */
+	public ReportingThresholds(int topN, double minimumFraction, long minimumReads) {
+		if (topN < 1 || topN > MAX_TOP_N) {
+			throw new IllegalArgumentException("topN=" + topN + " must be between 1 and " + MAX_TOP_N);
+		} else if (!(minimumFraction >= 0.0 && minimumFraction <= 1.0)) {
+			throw new IllegalArgumentException("minimumFraction=" + minimumFraction + " must be between 0 and 1");
+		} else if (minimumReads < 0) {
+			throw new IllegalArgumentException("minimumReads=" + minimumReads + " is negative");
+		}
+		this.topN = topN;
+		this.minimumFraction = minimumFraction;
+		this.minimumReads = minimumReads;
+	}
+
+	public int getTopN() {
+		return topN;
+	}
+
+	public double getMinimumFraction() {
+		return minimumFraction;
+	}
+
+	public long getMinimumReads() {
+		return minimumReads;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		} else if (!(o instanceof ReportingThresholds)) {
+			return false;
+		}
+		ReportingThresholds other = (ReportingThresholds) o;
+		return topN == other.topN && Double.compare(minimumFraction, other.minimumFraction) == 0
+				&& minimumReads == other.minimumReads;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (31 * topN + Double.hashCode(minimumFraction)) + Long.hashCode(minimumReads);
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "top_n=%d, min_fraction_total_reads=%s, min_new_est_reads=%d", topN,
+				minimumFraction, minimumReads);
+	}
+}
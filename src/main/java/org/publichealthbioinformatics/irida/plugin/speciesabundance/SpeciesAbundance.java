@@ -0,0 +1,113 @@
+package org.publichealthbioinformatics.irida.plugin.speciesabundance;
+
+/**
+ * A single row of a Bracken species abundance report. Instances are mutable so
+ * that the {@link SpeciesAbundanceParser} can recycle them while it scans a
+ * file, rather than allocating a new object for every row.
+ */
+public class SpeciesAbundance {
+
+	private String name;
+	private int taxonomyId;
+	private String taxonomyLevel;
+	private long krakenAssignedReads;
+	private long addedReads;
+	private long newEstimatedReads;
+	private double fractionTotalReads;
+	private String fractionTotalReadsText;
+	private long rowNumber;
+
+	SpeciesAbundance() {
+	}
+
+	/**
+	 * Builds a new {@link SpeciesAbundance} with the given values.
+	 *
+	 * @param name                The scientific name of the taxon.
+	 * @param taxonomyId          The NCBI taxonomy id of the taxon.
+	 * @param taxonomyLevel       The taxonomic level of the taxon (e.g. 'S').
+	 * @param krakenAssignedReads The number of reads assigned by kraken2.
+	 * @param addedReads          The number of reads added by bracken.
+	 * @param newEstimatedReads   The number of reads estimated by bracken.
+	 * @param fractionTotalReads  The fraction of the total reads, as written in
+	 *                            the report.
+	 */
+	public SpeciesAbundance(String name, int taxonomyId, String taxonomyLevel, long krakenAssignedReads,
+			long addedReads, long newEstimatedReads, String fractionTotalReads) {
+		this.name = name;
+		this.taxonomyId = taxonomyId;
+		this.taxonomyLevel = taxonomyLevel;
+		this.krakenAssignedReads = krakenAssignedReads;
+		this.addedReads = addedReads;
+		this.newEstimatedReads = newEstimatedReads;
+		this.fractionTotalReads = Double.parseDouble(fractionTotalReads);
+		this.fractionTotalReadsText = fractionTotalReads;
+	}
+
+	void set(String name, int taxonomyId, String taxonomyLevel, long krakenAssignedReads, long addedReads,
+			long newEstimatedReads, double fractionTotalReads, String fractionTotalReadsText, long rowNumber) {
+		this.name = name;
+		this.taxonomyId = taxonomyId;
+		this.taxonomyLevel = taxonomyLevel;
+		this.krakenAssignedReads = krakenAssignedReads;
+		this.addedReads = addedReads;
+		this.newEstimatedReads = newEstimatedReads;
+		this.fractionTotalReads = fractionTotalReads;
+		this.fractionTotalReadsText = fractionTotalReadsText;
+		this.rowNumber = rowNumber;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getTaxonomyId() {
+		return taxonomyId;
+	}
+
+	public String getTaxonomyLevel() {
+		return taxonomyLevel;
+	}
+
+	public long getKrakenAssignedReads() {
+		return krakenAssignedReads;
+	}
+
+	public long getAddedReads() {
+		return addedReads;
+	}
+
+	public long getNewEstimatedReads() {
+		return newEstimatedReads;
+	}
+
+	public double getFractionTotalReads() {
+		return fractionTotalReads;
+	}
+
+	/**
+	 * Gets the fraction of total reads exactly as it was written in the report,
+	 * so that it can be stored in the metadata without re-formatting.
+	 *
+	 * @return The fraction of total reads as text.
+	 */
+	public String getFractionTotalReadsText() {
+		return fractionTotalReadsText;
+	}
+
+	/**
+	 * Gets the (zero-based) position of this row amongst the data rows of the
+	 * report. Used to keep the original order of rows with equal abundance.
+	 *
+	 * @return The row number.
+	 */
+	long getRowNumber() {
+		return rowNumber;
+	}
+
+	@Override
+	public String toString() {
+		return "SpeciesAbundance{name=" + name + ", taxonomyId=" + taxonomyId + ", taxonomyLevel=" + taxonomyLevel
+				+ ", fractionTotalReads=" + fractionTotalReadsText + "}";
+	}
+}
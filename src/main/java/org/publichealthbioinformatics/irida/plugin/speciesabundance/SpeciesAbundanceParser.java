@@ -0,0 +1,513 @@
+package org.publichealthbioinformatics.irida.plugin.speciesabundance;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.google.common.io.CountingInputStream;
+
+/**
+ * A streaming parser for Bracken species abundance reports. Rows are read from a
+ * re-usable character buffer and only the most abundant rows (by
+ * <strong>fraction_total_reads</strong>) are kept, in a bounded heap. The
+ * report does not need to be sorted and may contain any number of rows.
+ *
+ * <p>
+ * Rows with a smaller fraction or fewer estimated reads than the minimums are
+ * never kept. Bracken writes its reports sorted from most to least abundant,
+ * and when the parser is told the input is sorted it stops reading as soon as
+ * no later row could be kept: once it has the maximum number of rows, or a row
+ * falls below a minimum. If the rows read so far turn out not to be sorted,
+ * the rest of the report is read as usual.
+ * </p>
+ *
+ * <p>
+ * A parser holds per-file state, so a new instance should be used for each
+ * file (or at least each thread).
+ * </p>
+ */
+class SpeciesAbundanceParser {
+
+	/**
+	 * The columns of a Bracken species abundance report, in the order they are
+	 * written by Bracken.
+	 */
+	static final String[] COLUMNS = { "name", "taxonomy_id", "taxonomy_lvl", "kraken_assigned_reads", "added_reads",
+			"new_est_reads", "fraction_total_reads" };
+
+	private static final int NAME = 0;
+	private static final int TAXONOMY_ID = 1;
+	private static final int TAXONOMY_LVL = 2;
+	private static final int KRAKEN_ASSIGNED_READS = 3;
+	private static final int ADDED_READS = 4;
+	private static final int NEW_EST_READS = 5;
+	private static final int FRACTION_TOTAL_READS = 6;
+
+	private static final int[] DEFAULT_COLUMN_INDEX = { 0, 1, 2, 3, 4, 5, 6 };
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18 };
+
+	/**
+	 * Orders abundances from least to most abundant. Rows with equal abundance
+	 * are ordered so that rows appearing earlier in the file are considered more
+	 * abundant.
+	 */
+	private static final Comparator<SpeciesAbundance> LEAST_ABUNDANT_FIRST = (a, b) -> {
+		int compare = Double.compare(a.getFractionTotalReads(), b.getFractionTotalReads());
+		return compare != 0 ? compare : Long.compare(b.getRowNumber(), a.getRowNumber());
+	};
+
+	private final int maxResults;
+	private double minimumFraction;
+	private long minimumReads;
+	private boolean assumeSorted;
+
+	private char[] buffer = new char[BUFFER_SIZE];
+	private int position;
+	private int scanned;
+	private int limit;
+	private boolean endOfInput;
+	private int lineStart;
+	private int lineEnd;
+	private long lineNumber;
+
+	private long rowsScanned;
+	private long bytesRead;
+	private long totalEstimatedReads;
+	private long totalAddedReads;
+	private boolean complete;
+
+	private AbundanceProfile profile;
+
+	private int[] columnIndex = DEFAULT_COLUMN_INDEX;
+	private int[] fieldStarts = new int[COLUMNS.length];
+	private int[] fieldEnds = new int[COLUMNS.length];
+
+	/**
+	 * Builds a new {@link SpeciesAbundanceParser}.
+	 *
+	 * @param maxResults The maximum number of (most abundant) rows to keep.
+	 */
+	SpeciesAbundanceParser(int maxResults) {
+		if (maxResults < 1) {
+			throw new IllegalArgumentException("maxResults=" + maxResults + " must be at least 1");
+		}
+		this.maxResults = maxResults;
+	}
+
+	/**
+	 * Sets an {@link AbundanceProfile} which every data row (not only the most
+	 * abundant) is added to as it is parsed.
+	 *
+	 * @param profile The {@link AbundanceProfile}, or null to keep only the most
+	 *                abundant rows.
+	 */
+	void setProfile(AbundanceProfile profile) {
+		this.profile = profile;
+	}
+
+	/**
+	 * Sets the minimum fraction_total_reads and new_est_reads of the rows to
+	 * keep. Rows below either minimum are still added to the profile.
+	 *
+	 * @param minimumFraction The minimum fraction_total_reads.
+	 * @param minimumReads    The minimum new_est_reads.
+	 */
+	void setMinimums(double minimumFraction, long minimumReads) {
+		this.minimumFraction = minimumFraction;
+		this.minimumReads = minimumReads;
+	}
+
+	/**
+	 * Sets whether the input is sorted from most to least abundant, so that
+	 * parsing can stop once no later row could be kept. This is ignored while a
+	 * profile (which needs every row) is being collected.
+	 *
+	 * @param assumeSorted True if the input is sorted.
+	 */
+	void setAssumeSorted(boolean assumeSorted) {
+		this.assumeSorted = assumeSorted;
+	}
+
+	/**
+	 * Parses the most abundant rows out of the passed file, which may be
+	 * gzip-compressed.
+	 *
+	 * @param speciesAbundanceFilePath The species abundance file.
+	 * @return A {@link List} of at most maxResults {@link SpeciesAbundance}s,
+	 *         ordered from most to least abundant.
+	 * @throws IOException If there was an error reading the file.
+	 */
+	List<SpeciesAbundance> parse(Path speciesAbundanceFilePath) throws IOException {
+		// counts the bytes read from disk, before decompression
+		CountingInputStream input = new CountingInputStream(Files.newInputStream(speciesAbundanceFilePath));
+		try (Reader reader = new InputStreamReader(CompressedFiles.decompress(input, speciesAbundanceFilePath),
+				StandardCharsets.UTF_8)) {
+			List<SpeciesAbundance> abundances = parse(reader);
+			bytesRead = input.getCount();
+			return abundances;
+		}
+	}
+
+	/**
+	 * Parses the most abundant rows out of the passed {@link Reader}. The reader
+	 * is not closed.
+	 *
+	 * @param reader The {@link Reader} for the species abundance report.
+	 * @return A {@link List} of at most maxResults {@link SpeciesAbundance}s,
+	 *         ordered from most to least abundant.
+	 * @throws IOException If there was an error reading the report.
+	 */
+	List<SpeciesAbundance> parse(Reader reader) throws IOException {
+		PriorityQueue<SpeciesAbundance> mostAbundant = new PriorityQueue<>(maxResults + 1, LEAST_ABUNDANT_FIRST);
+		long rowNumber = 0;
+		boolean firstLine = true;
+		// whether parsing may stop early, until a row is seen out of order
+		boolean sorted = assumeSorted && profile == null;
+		double previousFraction = Double.POSITIVE_INFINITY;
+		long estimatedReadsSum = 0;
+		long addedReadsSum = 0;
+		boolean stoppedEarly = false;
+
+		while (nextLine(reader)) {
+			if (lineStart == lineEnd) {
+				continue;
+			}
+			int fieldCount = splitFields();
+			if (firstLine) {
+				firstLine = false;
+				if (readHeader(fieldCount)) {
+					continue;
+				}
+			}
+
+			double fraction = parseFraction(field(FRACTION_TOTAL_READS, fieldCount));
+			long estimatedReads = parseLong(field(NEW_EST_READS, fieldCount));
+			if (profile != null) {
+				profile.add(parseInt(field(TAXONOMY_ID, fieldCount)), estimatedReads, fraction,
+						fieldString(field(NAME, fieldCount)));
+			}
+			if (sorted) {
+				if (fraction > previousFraction) {
+					sorted = false;
+				} else if (mostAbundant.size() == maxResults || fraction < minimumFraction
+						|| estimatedReads < minimumReads) {
+					// every later row is at most as abundant, and ties go to earlier rows. This row
+					// was only looked at, so it is not counted as scanned
+					stoppedEarly = true;
+					break;
+				}
+				previousFraction = fraction;
+			}
+			estimatedReadsSum += estimatedReads;
+			addedReadsSum += parseLong(field(ADDED_READS, fieldCount));
+			// rows below the minimums are counted, but never kept
+			boolean aboveMinimums = fraction >= minimumFraction && estimatedReads >= minimumReads;
+			if (aboveMinimums && mostAbundant.size() < maxResults) {
+				SpeciesAbundance abundance = new SpeciesAbundance();
+				setAbundance(abundance, fieldCount, fraction, rowNumber);
+				mostAbundant.offer(abundance);
+			} else if (aboveMinimums && fraction > mostAbundant.peek().getFractionTotalReads()) {
+				// recycle the least abundant row rather than allocating a new one
+				SpeciesAbundance abundance = mostAbundant.poll();
+				setAbundance(abundance, fieldCount, fraction, rowNumber);
+				mostAbundant.offer(abundance);
+			}
+			rowNumber++;
+		}
+		rowsScanned = rowNumber;
+		totalEstimatedReads = estimatedReadsSum;
+		totalAddedReads = addedReadsSum;
+		complete = !stoppedEarly;
+
+		SpeciesAbundance[] abundances = mostAbundant.toArray(new SpeciesAbundance[0]);
+		Arrays.sort(abundances, Collections.reverseOrder(LEAST_ABUNDANT_FIRST));
+		return new ArrayList<>(Arrays.asList(abundances));
+	}
+
+	/**
+	 * The number of data rows consumed by the last call to parse. When parsing
+	 * stops early, the row which showed that no later row would be reported is
+	 * not counted.
+	 *
+	 * @return The number of rows scanned.
+	 */
+	long getRowsScanned() {
+		return rowsScanned;
+	}
+
+	/**
+	 * The sum of new_est_reads over the rows scanned by the last call to parse.
+	 *
+	 * @return The total estimated reads.
+	 */
+	long getTotalEstimatedReads() {
+		return totalEstimatedReads;
+	}
+
+	/**
+	 * The sum of added_reads (the reads Bracken reassigned to species from
+	 * higher levels) over the rows scanned by the last call to parse.
+	 *
+	 * @return The total added reads.
+	 */
+	long getTotalAddedReads() {
+		return totalAddedReads;
+	}
+
+	/**
+	 * Whether the last call to parse read every row, so that the totals cover
+	 * the whole report, rather than stopping early on sorted input.
+	 *
+	 * @return True if every row was read.
+	 */
+	boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * The number of bytes read from the file by the last call to
+	 * {@link #parse(Path)}. For a compressed file, this is the compressed size.
+	 *
+	 * @return The number of bytes read.
+	 */
+	long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * Checks whether the current line is a header line and, if it is, builds the
+	 * index from each of the expected {@link #COLUMNS} to its position in the
+	 * line.
+	 *
+	 * @param fieldCount The number of fields in the current line.
+	 * @return True if the current line is a header, false if it is data.
+	 */
+	private boolean readHeader(int fieldCount) {
+		int[] headerIndex = new int[COLUMNS.length];
+		for (int column = 0; column < COLUMNS.length; column++) {
+			headerIndex[column] = -1;
+			for (int i = 0; i < fieldCount; i++) {
+				if (fieldEquals(i, COLUMNS[column])) {
+					headerIndex[column] = i;
+					break;
+				}
+			}
+			if (headerIndex[column] == -1) {
+				return false;
+			}
+		}
+
+		columnIndex = headerIndex;
+		return true;
+	}
+
+	private boolean fieldEquals(int i, String value) {
+		int length = fieldEnds[i] - fieldStarts[i];
+		if (length != value.length()) {
+			return false;
+		}
+		for (int j = 0; j < length; j++) {
+			if (buffer[fieldStarts[i] + j] != value.charAt(j)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void setAbundance(SpeciesAbundance abundance, int fieldCount, double fraction, long rowNumber)
+			throws IOException {
+		int name = field(NAME, fieldCount);
+		int taxonomyId = field(TAXONOMY_ID, fieldCount);
+		int taxonomyLevel = field(TAXONOMY_LVL, fieldCount);
+		int fractionText = field(FRACTION_TOTAL_READS, fieldCount);
+
+		abundance.set(fieldString(name), parseInt(taxonomyId), fieldString(taxonomyLevel),
+				parseLong(field(KRAKEN_ASSIGNED_READS, fieldCount)), parseLong(field(ADDED_READS, fieldCount)),
+				parseLong(field(NEW_EST_READS, fieldCount)), fraction, fieldString(fractionText), rowNumber);
+	}
+
+	/**
+	 * Gets the position within the current line of the given column.
+	 *
+	 * @param column     The column (e.g. {@link #NAME}).
+	 * @param fieldCount The number of fields in the current line.
+	 * @return The index of the field in the current line.
+	 * @throws IOException If the current line does not contain the column.
+	 */
+	private int field(int column, int fieldCount) throws IOException {
+		int i = columnIndex[column];
+		if (i >= fieldCount) {
+			throw new IOException("Line " + lineNumber + " is missing column " + COLUMNS[column]);
+		}
+		return i;
+	}
+
+	private String fieldString(int i) {
+		return new String(buffer, fieldStarts[i], fieldEnds[i] - fieldStarts[i]);
+	}
+
+	private long parseLong(int i) throws IOException {
+		int start = fieldStarts[i];
+		int end = fieldEnds[i];
+		if (start == end) {
+			throw new IOException("Line " + lineNumber + " has an empty number");
+		}
+		long value = 0;
+		for (int j = start; j < end; j++) {
+			char c = buffer[j];
+			if (c < '0' || c > '9') {
+				throw new IOException("Line " + lineNumber + " has an invalid number '" + fieldString(i) + "'");
+			}
+			if (value > (Long.MAX_VALUE - (c - '0')) / 10) {
+				throw new IOException("Line " + lineNumber + " has a number out of range '" + fieldString(i) + "'");
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * Parses a field which must fit in an int, such as a taxonomy id.
+	 */
+	private int parseInt(int i) throws IOException {
+		long value = parseLong(i);
+		if (value > Integer.MAX_VALUE) {
+			throw new IOException("Line " + lineNumber + " has a number out of range '" + fieldString(i) + "'");
+		}
+		return (int) value;
+	}
+
+	/**
+	 * Parses a fraction written as plain decimal digits (as Bracken writes them)
+	 * without allocating. Anything else is handed to
+	 * {@link Double#parseDouble(String)}.
+	 */
+	private double parseFraction(int i) throws IOException {
+		int start = fieldStarts[i];
+		int end = fieldEnds[i];
+		long digits = 0;
+		int digitCount = 0;
+		int decimals = -1;
+		for (int j = start; j < end; j++) {
+			char c = buffer[j];
+			if (c >= '0' && c <= '9') {
+				digits = digits * 10 + (c - '0');
+				digitCount++;
+				if (decimals >= 0) {
+					decimals++;
+				}
+			} else if (c == '.' && decimals < 0) {
+				decimals = 0;
+			} else {
+				digitCount = -1;
+				break;
+			}
+		}
+
+		if (digitCount > 0 && digitCount <= 15 && decimals < POWERS_OF_TEN.length) {
+			return decimals <= 0 ? digits : digits / POWERS_OF_TEN[decimals];
+		}
+
+		try {
+			return Double.parseDouble(fieldString(i));
+		} catch (NumberFormatException e) {
+			throw new IOException("Line " + lineNumber + " has an invalid fraction '" + fieldString(i) + "'", e);
+		}
+	}
+
+	/**
+	 * Splits the current line on tabs, recording the start and end of each field.
+	 *
+	 * @return The number of fields in the line.
+	 */
+	private int splitFields() {
+		int count = 0;
+		int start = lineStart;
+		for (int i = lineStart; i < lineEnd; i++) {
+			if (buffer[i] == '\t') {
+				addField(count++, start, i);
+				start = i + 1;
+			}
+		}
+		addField(count++, start, lineEnd);
+		return count;
+	}
+
+	private void addField(int i, int start, int end) {
+		if (i == fieldStarts.length) {
+			fieldStarts = Arrays.copyOf(fieldStarts, i * 2);
+			fieldEnds = Arrays.copyOf(fieldEnds, i * 2);
+		}
+		fieldStarts[i] = start;
+		fieldEnds[i] = end;
+	}
+
+	/**
+	 * Advances to the next line of input, refilling the buffer as necessary.
+	 * The line is available in the buffer between {@link #lineStart} and
+	 * {@link #lineEnd}, without the line terminator.
+	 *
+	 * @param reader The {@link Reader} to read from.
+	 * @return True if a line was read, false at the end of input.
+	 * @throws IOException If there was an error reading.
+	 */
+	private boolean nextLine(Reader reader) throws IOException {
+		while (true) {
+			for (; scanned < limit; scanned++) {
+				if (buffer[scanned] == '\n') {
+					endLine(scanned, scanned + 1);
+					return true;
+				}
+			}
+
+			if (endOfInput) {
+				if (position < limit) {
+					endLine(limit, limit);
+					return true;
+				}
+				return false;
+			}
+
+			int remaining = limit - position;
+			if (position > 0) {
+				System.arraycopy(buffer, position, buffer, 0, remaining);
+			} else if (remaining == buffer.length) {
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			}
+			position = 0;
+			scanned = remaining;
+			limit = remaining;
+
+			int read = reader.read(buffer, limit, buffer.length - limit);
+			if (read < 0) {
+				endOfInput = true;
+			} else {
+				limit += read;
+			}
+		}
+	}
+
+	private void endLine(int end, int next) {
+		lineStart = position;
+		lineEnd = end;
+		if (lineEnd > lineStart && buffer[lineEnd - 1] == '\r') {
+			lineEnd--;
+		}
+		position = next;
+		scanned = next;
+		lineNumber++;
+	}
+}
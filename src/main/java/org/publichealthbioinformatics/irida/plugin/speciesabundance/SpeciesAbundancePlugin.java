@@ -1,6 +1,8 @@
 package org.publichealthbioinformatics.irida.plugin.speciesabundance;
 
 import java.awt.Color;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -127,7 +129,45 @@ public class SpeciesAbundancePlugin extends Plugin {
 		@Override
 		public Optional<AnalysisSampleUpdater> getUpdater(MetadataTemplateService metadataTemplateService,
 				SampleService sampleService, IridaWorkflowsService iridaWorkflowsService) throws IridaPluginException {
-			return Optional.of(new SpeciesAbundancePluginUpdater(metadataTemplateService, sampleService, iridaWorkflowsService));
+			SpeciesAbundancePluginUpdater updater = new SpeciesAbundancePluginUpdater(metadataTemplateService,
+					sampleService, iridaWorkflowsService);
+			try {
+				updater.setAssumeSortedInput(PluginProperties.getBoolean(PluginProperties.ASSUME_SORTED, false));
+				updater.setReportingThresholds(new ReportingThresholds(
+						PluginProperties.getInt(PluginProperties.REPORT_TOP_N, ReportingThresholds.DEFAULT_TOP_N),
+						PluginProperties.getDouble(PluginProperties.REPORT_MIN_FRACTION, 0.0),
+						PluginProperties.getLong(PluginProperties.REPORT_MIN_READS, 0)));
+				String sidecarDirectory = PluginProperties.getString(PluginProperties.PROFILE_SIDECAR_DIRECTORY, null);
+				if (sidecarDirectory != null) {
+					updater.setProfileSidecarDirectory(Paths.get(sidecarDirectory));
+				}
+				String taxonomyDirectory = PluginProperties.getString(PluginProperties.TAXONOMY_DIRECTORY, null);
+				if (taxonomyDirectory != null) {
+					String taxonomyCacheDirectory = PluginProperties
+							.getString(PluginProperties.TAXONOMY_CACHE_DIRECTORY, null);
+					updater.setLineageResolver(TaxonomyLineageResolver.loadShared(Paths.get(taxonomyDirectory),
+							taxonomyCacheDirectory == null ? null : Paths.get(taxonomyCacheDirectory)));
+				}
+				return Optional.of(updater);
+			} catch (IOException e) {
+				throw pluginException("Could not open data files for plugin " + SPECIES_ABUNDANCE.getType(), e);
+			} catch (IllegalArgumentException e) {
+				throw pluginException("Invalid configuration for plugin " + SPECIES_ABUNDANCE.getType(), e);
+			}
+		}
+
+		/**
+		 * Builds an {@link IridaPluginException} which keeps the exception that
+		 * caused it.
+		 * 
+		 * @param message The message, which is followed by that of the cause.
+		 * @param cause   The cause of the exception.
+		 * @return The {@link IridaPluginException}.
+		 */
+		private static IridaPluginException pluginException(String message, Exception cause) {
+			IridaPluginException exception = new IridaPluginException(message + ": " + cause.getMessage());
+			exception.initCause(cause);
+			return exception;
 		}
 	}
 }
@@ -1,10 +1,17 @@
 package org.publichealthbioinformatics.irida.plugin.speciesabundance;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import ca.corefacility.bioinformatics.irida.exceptions.IridaWorkflowNotFoundException;
 import ca.corefacility.bioinformatics.irida.exceptions.PostProcessingException;
@@ -21,6 +28,8 @@ import ca.corefacility.bioinformatics.irida.service.sample.SampleService;
 import ca.corefacility.bioinformatics.irida.service.workflow.IridaWorkflowsService;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 /**
  * This implements a class used to perform post-processing on the analysis
@@ -31,13 +40,75 @@ import com.google.common.annotations.VisibleForTesting;
  */
 public class SpeciesAbundancePluginUpdater implements AnalysisSampleUpdater {
 
+	private static final Logger logger = LoggerFactory.getLogger(SpeciesAbundancePluginUpdater.class);
+
 	private final MetadataTemplateService metadataTemplateService;
 	private final SampleService sampleService;
 	private final IridaWorkflowsService iridaWorkflowsService;
-	private final int NUM_SPECIES_TO_REPORT = 5;
+	private final ForkJoinPool parsingPool;
 
 	/**
-	 * Builds a new {@link SpeciesAbundancePluginUpdater} with the given services.
+	 * The maximum number of workflows to keep a {@link MetadataFieldPlan} for.
+	 */
+	private static final int MAX_CACHED_WORKFLOWS = 16;
+
+	private final BoundedLruCache<UUID, MetadataFieldPlan> metadataFieldPlans = new BoundedLruCache<>(
+			MAX_CACHED_WORKFLOWS);
+
+	private UpdaterMetrics metrics = UpdaterMetrics.NOOP;
+	private TaxonomyLineageResolver lineageResolver;
+	private Path profileSidecarDirectory;
+	private boolean assumeSortedInput;
+	private ReportingThresholds reportingThresholds = ReportingThresholds.DEFAULT;
+
+	/**
+	 * Orders analyses from oldest to newest, by creation date and then id.
+	 */
+	private static final Comparator<AnalysisSubmission> OLDEST_FIRST = Comparator
+			.comparing((AnalysisSubmission analysis) -> analysis.getCreatedDate(),
+					Comparator.nullsFirst(Comparator.<Date>naturalOrder()))
+			.thenComparing(AnalysisSubmission::getId, Comparator.nullsFirst(Comparator.<Long>naturalOrder()));
+
+	/**
+	 * The default number of threads used to read kraken2 reports.
+	 */
+	static final int DEFAULT_PARSING_PARALLELISM = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * The {@link ForkJoinPool} shared by every updater (IRIDA builds a new
+	 * updater each time the plugin is loaded), created when it is first used.
+	 * Its threads are daemon threads, so it is never shut down.
+	 */
+	private static final class SharedParsingPool {
+		static final ForkJoinPool POOL = new ForkJoinPool(DEFAULT_PARSING_PARALLELISM, pool -> {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName("species-abundance-parser-" + thread.getPoolIndex());
+			thread.setDaemon(true);
+			return thread;
+		}, null, false);
+	}
+
+	/**
+	 * The reported species of a species abundance file, along with totals over
+	 * every row.
+	 */
+	private static final class SpeciesAbundanceReport {
+		private final List<SpeciesAbundance> speciesAbundances;
+		private final long totalEstimatedReads;
+		private final long totalAddedReads;
+		private final boolean complete;
+
+		SpeciesAbundanceReport(List<SpeciesAbundance> speciesAbundances, SpeciesAbundanceParser parser) {
+			this.speciesAbundances = speciesAbundances;
+			this.totalEstimatedReads = parser.getTotalEstimatedReads();
+			this.totalAddedReads = parser.getTotalAddedReads();
+			this.complete = parser.isComplete();
+		}
+	}
+
+	/**
+	 * Builds a new {@link SpeciesAbundancePluginUpdater} with the given services,
+	 * reading kraken2 reports on a pool shared by every updater.
 	 *
 	 * @param metadataTemplateService The metadata template service.
 	 * @param sampleService           The sample service.
@@ -45,14 +116,31 @@ public class SpeciesAbundancePluginUpdater implements AnalysisSampleUpdater {
 	 */
 	public SpeciesAbundancePluginUpdater(MetadataTemplateService metadataTemplateService, SampleService sampleService,
 			IridaWorkflowsService iridaWorkflowsService) {
+		this(metadataTemplateService, sampleService, iridaWorkflowsService, SharedParsingPool.POOL);
+	}
+
+	/**
+	 * Builds a new {@link SpeciesAbundancePluginUpdater} with the given services.
+	 *
+	 * @param metadataTemplateService The metadata template service.
+	 * @param sampleService           The sample service.
+	 * @param iridaWorkflowsService   The irida workflows service.
+	 * @param parsingPool             The {@link ForkJoinPool} used to read
+	 *                                kraken2 reports, which is not shut down by
+	 *                                the updater.
+	 */
+	public SpeciesAbundancePluginUpdater(MetadataTemplateService metadataTemplateService, SampleService sampleService,
+			IridaWorkflowsService iridaWorkflowsService, ForkJoinPool parsingPool) {
 		this.metadataTemplateService = metadataTemplateService;
 		this.sampleService = sampleService;
 		this.iridaWorkflowsService = iridaWorkflowsService;
+		this.parsingPool = parsingPool;
 	}
 
 	/**
 	 * Code to perform the actual update of the {@link Sample}s passed in the
-	 * collection.
+	 * collection. The output files of the sample are parsed concurrently, and the
+	 * metadata is then written on the calling thread.
 	 *
 	 * @param samples  A collection of {@link Sample}s that were passed to this
 	 *                 pipeline.
@@ -76,75 +164,570 @@ public class SpeciesAbundancePluginUpdater implements AnalysisSampleUpdater {
 		// above)
 		final Sample sample = samples.iterator().next();
 
+		// the phase being run, so a failure can be attributed to it
+		UpdaterPhase phase = UpdaterPhase.WORKFLOW_LOOKUP;
+		try {
+			// get information about the workflow (e.g., version and name)
+			MetadataFieldPlan plan = getMetadataFieldPlan(analysis.getWorkflowId());
+			ReportingThresholds thresholds = reportingThresholds;
+
+			// the full profile is only collected if something needs it
+			Path sidecarDirectory = sample.getId() != null && analysis.getId() != null ? profileSidecarDirectory
+					: null;
+			AbundanceProfile profile = sidecarDirectory != null ? new AbundanceProfile() : null;
+
+			phase = UpdaterPhase.PARSE;
+			Map<String, MetadataEntry> metadataEntries = buildMetadataEntries(sample, plan, thresholds, profile,
+					analysis);
+
+			// database reads and writes stay on this thread, inside the transaction IRIDA
+			// runs the update in, after all of the parsing is done
+			//convert the string/entry Map to a Set of MetadataEntry
+			phase = UpdaterPhase.FIELD_RESOLUTION;
+			Set<MetadataEntry> metadataSet = convertMetadataStringsToSet(metadataEntries);
+
+			// only write entries which differ from what a previous analysis wrote, and
+			// never replace an entry written by a newer analysis. The existing metadata is
+			// read immediately before the write, so nothing else runs in between
+			phase = UpdaterPhase.METADATA_WRITE;
+			Set<MetadataEntry> changedSet = removeUnchangedEntries(sample, plan, metadataSet, analysis);
+			if (!changedSet.isEmpty()) {
+				// merges with existing sample metadata and does an update of the sample metadata.
+				mergeSampleMetadata(sample, changedSet);
+			}
+
+			// the profile is only kept once the metadata parsed along with it is written
+			if (sidecarDirectory != null) {
+				writeProfileSidecar(profile,
+						ProfileSidecar.getSidecarPath(sidecarDirectory, sample.getId(), analysis.getId()));
+			}
+		} catch (IOException e) {
+			recordFailure(phase, e);
+			throw new PostProcessingException("Error parsing analysis output files", e);
+		} catch (IridaWorkflowNotFoundException e) {
+			recordFailure(phase, e);
+			throw new PostProcessingException("Could not find workflow for id=" + analysis.getWorkflowId(), e);
+		} catch (RuntimeException e) {
+			recordFailure(phase, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Sets the {@link UpdaterMetrics} to report timings and counters to. By
+	 * default, nothing is reported (other than Java Flight Recorder events, when
+	 * a recording is running).
+	 *
+	 * @param metrics The {@link UpdaterMetrics}.
+	 */
+	public void setMetrics(UpdaterMetrics metrics) {
+		this.metrics = metrics == null ? UpdaterMetrics.NOOP : metrics;
+	}
+
+	/**
+	 * Sets a {@link TaxonomyLineageResolver} used to add the genus and family of
+	 * each reported species to the metadata.
+	 *
+	 * @param lineageResolver The {@link TaxonomyLineageResolver}, or null to not
+	 *                        add lineage fields.
+	 */
+	public void setLineageResolver(TaxonomyLineageResolver lineageResolver) {
+		this.lineageResolver = lineageResolver;
+	}
+
+	/**
+	 * Sets a directory to write the full profile of each sample to, as a
+	 * {@link ProfileSidecar} per analysis. The analysis output directories
+	 * belong to IRIDA, so sidecars are never written there.
+	 *
+	 * @param profileSidecarDirectory The directory, or null to not write profile
+	 *                                sidecar files.
+	 */
+	public void setProfileSidecarDirectory(Path profileSidecarDirectory) {
+		this.profileSidecarDirectory = profileSidecarDirectory;
+	}
+
+	/**
+	 * Sets which species are reported in the metadata of each sample. By
+	 * default, the top {@value ReportingThresholds#DEFAULT_TOP_N} species are
+	 * reported.
+	 *
+	 * @param reportingThresholds The {@link ReportingThresholds}.
+	 */
+	public void setReportingThresholds(ReportingThresholds reportingThresholds) {
+		this.reportingThresholds = reportingThresholds == null ? ReportingThresholds.DEFAULT : reportingThresholds;
+	}
+
+	/**
+	 * Sets whether species abundance files are sorted from most to least
+	 * abundant, as Bracken writes them, so parsing can stop as soon as no later
+	 * row would be reported. Unsorted files are still parsed correctly as long as
+	 * they are out of order before that point.
+	 *
+	 * @param assumeSortedInput True if species abundance files are sorted.
+	 */
+	public void setAssumeSortedInput(boolean assumeSortedInput) {
+		this.assumeSortedInput = assumeSortedInput;
+	}
+
+	private void recordFailure(UpdaterPhase phase, Throwable failure) {
+		UpdaterEvents.UpdateFailure event = new UpdaterEvents.UpdateFailure();
+		event.phase = phase.name();
+		event.exceptionType = failure.getClass();
+		event.message = failure.getMessage();
+		event.commit();
+
+		metrics.recordFailure(phase, failure);
+	}
+
+	/**
+	 * Removes the entries which should not change the existing metadata of the
+	 * {@link Sample}: those with the same value and type as an entry already
+	 * provided by the same analysis. An entry with the same value as one
+	 * provided by an older analysis is still written, so that the entry records
+	 * the newer analysis and is not replaced by one in between. Entries entered
+	 * by a user are always replaced. Fields a previous analysis wrote but this
+	 * one does not (because it reports fewer species, has no kraken2 report, or
+	 * could not compute a quality metric) are cleared.
+	 *
+	 * <p>
+	 * If any of these fields was provided by a newer analysis, nothing is
+	 * written at all, so the newest analysis of a sample wins whichever order the
+	 * analyses complete in, and the species of an older analysis are never mixed
+	 * with those of a newer one.
+	 * </p>
+	 *
+	 * <p>
+	 * The existing metadata is read here, on the calling thread, so it should be
+	 * called immediately before the entries are written, in the same
+	 * transaction.
+	 * </p>
+	 *
+	 * @param sample      The {@link Sample}.
+	 * @param plan        The {@link MetadataFieldPlan} for the workflow.
+	 * @param metadataSet The new metadata entries, with their fields resolved.
+	 * @param analysis    The {@link AnalysisSubmission} providing the new
+	 *                    entries.
+	 * @return The entries which have changed.
+	 */
+	private Set<MetadataEntry> removeUnchangedEntries(Sample sample, MetadataFieldPlan plan,
+			Set<MetadataEntry> metadataSet, AnalysisSubmission analysis) {
+		Set<MetadataEntry> existingEntries = sampleService.getMetadataForSample(sample);
+		if (existingEntries == null || existingEntries.isEmpty()) {
+			metrics.recordUnchangedEntries(0, metadataSet.size());
+			return metadataSet;
+		}
+
+		Set<String> labels = Sets.newHashSetWithExpectedSize(metadataSet.size());
+		for (MetadataEntry entry : metadataSet) {
+			if (entry.getField() != null) {
+				labels.add(entry.getField().getLabel());
+			}
+		}
+
+		// the pipeline entries this analysis writes or clears, by label
+		Map<String, MetadataEntry> existingByLabel = Maps.newHashMapWithExpectedSize(existingEntries.size());
+		List<MetadataEntry> entries = new ArrayList<>(metadataSet);
+		for (MetadataEntry existing : existingEntries) {
+			if (!(existing instanceof PipelineProvidedMetadataEntry) || existing.getField() == null) {
+				continue;
+			}
+			String label = existing.getField().getLabel();
+			if (labels.contains(label)) {
+				existingByLabel.put(label, existing);
+			} else if (plan.isSpeciesKey(label) || plan.isKraken2Key(label)) {
+				// a field a previous analysis wrote, but this one does not
+				existingByLabel.put(label, existing);
+				MetadataEntry cleared = new PipelineProvidedMetadataEntry("", existing.getType(), analysis);
+				cleared.setField(existing.getField());
+				entries.add(cleared);
+			} else {
+				continue;
+			}
+			if (isNewer(((PipelineProvidedMetadataEntry) existing).getSubmission(), analysis)) {
+				logger.debug("Not updating sample=" + sample.getId() + " with metadata provided by an analysis newer"
+						+ " than analysisSubmission=" + analysis.getId());
+				metrics.recordUnchangedEntries(metadataSet.size(), metadataSet.size());
+				return Collections.emptySet();
+			}
+		}
+
+		Set<MetadataEntry> changedEntries = Sets.newHashSetWithExpectedSize(entries.size());
+		for (MetadataEntry entry : entries) {
+			MetadataEntry existing = entry.getField() == null ? null
+					: existingByLabel.get(entry.getField().getLabel());
+			if (existing == null || isOlder(((PipelineProvidedMetadataEntry) existing).getSubmission(), analysis)
+					|| !Objects.equals(existing.getValue(), entry.getValue())
+					|| !Objects.equals(existing.getType(), entry.getType())) {
+				changedEntries.add(entry);
+			}
+		}
+
+		metrics.recordUnchangedEntries(entries.size() - changedEntries.size(), entries.size());
+		return changedEntries;
+	}
+
+	/**
+	 * Whether an existing entry was provided by a newer analysis than the one
+	 * being written.
+	 *
+	 * @param existing The {@link AnalysisSubmission} which provided the existing
+	 *                 entry, if known.
+	 * @param analysis The {@link AnalysisSubmission} being written.
+	 * @return True if the sample should be left as it is.
+	 */
+	private static boolean isNewer(AnalysisSubmission existing, AnalysisSubmission analysis) {
+		return existing != null && OLDEST_FIRST.compare(existing, analysis) > 0;
+	}
+
+	/**
+	 * Whether an existing entry was provided by an older analysis than the one
+	 * being written.
+	 *
+	 * @param existing The {@link AnalysisSubmission} which provided the existing
+	 *                 entry, if known.
+	 * @param analysis The {@link AnalysisSubmission} being written.
+	 * @return True if the existing entry should be replaced, even by the same
+	 *         value.
+	 */
+	private static boolean isOlder(AnalysisSubmission existing, AnalysisSubmission analysis) {
+		return existing != null && OLDEST_FIRST.compare(existing, analysis) < 0;
+	}
+
+	/**
+	 * Merges the metadata into the existing metadata of the {@link Sample}.
+	 *
+	 * @param sample      The {@link Sample}.
+	 * @param metadataSet The metadata to merge.
+	 */
+	private void mergeSampleMetadata(Sample sample, Set<MetadataEntry> metadataSet) {
+		UpdaterEvents.MetadataWrite event = new UpdaterEvents.MetadataWrite();
+		event.begin();
+		long start = System.nanoTime();
+
+		sampleService.mergeSampleMetadata(sample, metadataSet);
+
+		metrics.recordPhase(UpdaterPhase.METADATA_WRITE, System.nanoTime() - start);
+		event.sampleId = sample.getId() == null ? -1 : sample.getId();
+		event.entries = metadataSet.size();
+		event.commit();
+	}
+
+	/**
+	 * Gets the {@link MetadataFieldPlan} for a workflow, looking up the workflow
+	 * only if there is no cached plan for it.
+	 *
+	 * @param workflowId The id of the workflow.
+	 * @return The {@link MetadataFieldPlan} for the workflow.
+	 * @throws IridaWorkflowNotFoundException If there is no workflow with the id.
+	 */
+	private MetadataFieldPlan getMetadataFieldPlan(UUID workflowId) throws IridaWorkflowNotFoundException {
+		UpdaterEvents.WorkflowLookup event = new UpdaterEvents.WorkflowLookup();
+		event.begin();
+		long start = System.nanoTime();
+
+		MetadataFieldPlan plan = metadataFieldPlans.get(workflowId);
+		boolean cached = plan != null;
+		if (!cached) {
+			IridaWorkflow iridaWorkflow = iridaWorkflowsService.getIridaWorkflow(workflowId);
+			plan = new MetadataFieldPlan(iridaWorkflow.getWorkflowDescription().getName(),
+					ReportingThresholds.MAX_TOP_N);
+			metadataFieldPlans.put(workflowId, plan);
+		}
+
+		metrics.recordPhase(UpdaterPhase.WORKFLOW_LOOKUP, System.nanoTime() - start);
+		metrics.recordCache(UpdaterPhase.WORKFLOW_LOOKUP, cached);
+		event.workflowId = String.valueOf(workflowId);
+		event.cached = cached;
+		event.commit();
+		return plan;
+	}
+
+	/**
+	 * Converts the metadata entries for a sample to a {@link Set} of
+	 * {@link MetadataEntry}s. The {@link MetadataTemplateService} resolves (and
+	 * if needed, creates) the fields on every update, inside the transaction the
+	 * update runs in, so no field is carried over from another transaction.
+	 *
+	 * @param metadataEntries The metadata entries, by key.
+	 * @return The {@link Set} of {@link MetadataEntry}s.
+	 */
+	private Set<MetadataEntry> convertMetadataStringsToSet(Map<String, MetadataEntry> metadataEntries) {
+		UpdaterEvents.FieldResolution event = new UpdaterEvents.FieldResolution();
+		event.begin();
+		long start = System.nanoTime();
+
+		Set<MetadataEntry> metadataSet = metadataTemplateService.convertMetadataStringsToSet(metadataEntries);
+
+		metrics.recordPhase(UpdaterPhase.FIELD_RESOLUTION, System.nanoTime() - start);
+		event.entries = metadataEntries.size();
+		event.commit();
+		return metadataSet;
+	}
+
+	/**
+	 * Gets the failure of a parsing task run on the {@link #parsingPool}.
+	 *
+	 * @param e The {@link ExecutionException} thrown by the task.
+	 * @return The {@link IOException} which failed the task.
+	 * @throws RuntimeException If the task failed with a {@link RuntimeException}.
+	 */
+	private static IOException parsingFailure(ExecutionException e) {
+		// the pool wraps checked exceptions thrown by a Callable in RuntimeExceptions
+		Throwable cause = e.getCause();
+		for (Throwable t = cause; t != null; t = t.getCause()) {
+			if (t instanceof IOException) {
+				return (IOException) t;
+			}
+		}
+		if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		}
+		return new IOException("Error parsing analysis output files", cause);
+	}
+
+	/**
+	 * Waits for a parsing task run on the {@link #parsingPool}.
+	 *
+	 * @param task The task.
+	 * @return The result of the task.
+	 * @throws IOException If the task failed, or was interrupted.
+	 */
+	private static <T> T awaitParse(ForkJoinTask<T> task) throws IOException {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while parsing analysis output files");
+		} catch (ExecutionException e) {
+			throw parsingFailure(e);
+		}
+	}
+
+	/**
+	 * Parses the output files for a single {@link Sample} and builds the
+	 * metadata entries to write for it. A kraken2 report which cannot be read is
+	 * logged and left out, like a missing one.
+	 *
+	 * @param sample       The {@link Sample}.
+	 * @param plan         The {@link MetadataFieldPlan} for the workflow.
+	 * @param thresholds   The {@link ReportingThresholds} for the analysis.
+	 * @param profile      An {@link AbundanceProfile} to add every row of the
+	 *                     species abundance file to, or null.
+	 * @param analysis     The {@link AnalysisSubmission}.
+	 * @return The metadata entries for the sample.
+	 * @throws IOException If there was an error parsing the species abundance
+	 *                     file.
+	 */
+	private Map<String, MetadataEntry> buildMetadataEntries(Sample sample, MetadataFieldPlan plan,
+			ReportingThresholds thresholds, AbundanceProfile profile, AnalysisSubmission analysis) throws IOException {
 		// extracts paths to the analysis result files
 		AnalysisOutputFile speciesAbundanceFile = analysis.getAnalysis().getAnalysisOutputFile("species_abundance");
+		if (speciesAbundanceFile == null) {
+			throw new IOException("No species_abundance output for sample=" + sample.getId()
+					+ " in analysisSubmission=" + analysis.getId());
+		}
 		Path speciesAbundanceFilePath = speciesAbundanceFile.getFile();
+		// older analyses may not have a kraken2 report, so it is optional
+		AnalysisOutputFile kraken2ReportFile = analysis.getAnalysis().getAnalysisOutputFile("kraken2_report");
+
+		TaxonomyLineageResolver resolver = lineageResolver;
 
+		// the kraken2 report is read on the parsing pool while this thread parses the species abundance file
+		ForkJoinTask<Kraken2ReportIndex> kraken2ReportTask = kraken2ReportFile == null ? null
+				: parsingPool.submit(() -> readKraken2Report(kraken2ReportFile.getFile()));
+		SpeciesAbundanceReport report;
 		try {
-			Map<String, MetadataEntry> metadataEntries = new HashMap<>();
+			report = parseSpeciesAbundanceReport(speciesAbundanceFilePath, profile, thresholds);
+		} catch (IOException | RuntimeException e) {
+			if (kraken2ReportTask != null) {
+				kraken2ReportTask.cancel(false);
+			}
+			throw e;
+		}
+		// sized for every entry which may be added, so the map is never resized while it is filled
+		Map<String, MetadataEntry> metadataEntries = Maps.newHashMapWithExpectedSize(
+				plan.getMaxEntries(report.speciesAbundances.size(), resolver != null, kraken2ReportTask != null));
+		addSpeciesEntries(metadataEntries, plan, report.speciesAbundances, resolver, analysis);
 
-			// get information about the workflow (e.g., version and name)
-			IridaWorkflow iridaWorkflow = iridaWorkflowsService.getIridaWorkflow(analysis.getWorkflowId());
-			String workflowVersion = iridaWorkflow.getWorkflowDescription().getVersion();
-			String workflowName = iridaWorkflow.getWorkflowDescription().getName();
-
-			List<Map<String, String>> speciesAbundances = parseSpeciesAbundanceFile(speciesAbundanceFilePath);
-			int speciesNum = 1;
-			for (Map<String, String> species : speciesAbundances) {
-				String key;
-				String value;
-				PipelineProvidedMetadataEntry entry;
-
-				value = species.get("taxonomy_lvl");
-				entry = new PipelineProvidedMetadataEntry(value, "text", analysis);
-				// taxonomy_level is only recorded once per sample. (should be identical for all lines in a report.)
-				if (speciesNum == 1) {
-					key = workflowName + "/" + "taxonomy_level";
-					metadataEntries.put(key, entry);
-				}
-
-				value = species.get("name");
-				entry = new PipelineProvidedMetadataEntry(value, "text", analysis);
-				if (speciesNum == 1) {
-					key = workflowName + "/" + "taxon_name";
-				} else {
-					key = workflowName + "/" + "taxon_name_" + speciesNum;
-				} 
-				metadataEntries.put(key, entry);
-
-				value = species.get("taxonomy_id");
-				entry = new PipelineProvidedMetadataEntry(value, "text", analysis);
-				if (speciesNum == 1) {
-					key = workflowName + "/" + "taxonomy_id";
-				} else {
-					key = workflowName + "/" + "taxonomy_id_" + speciesNum;
-				}
-				metadataEntries.put(key, entry);
-
-				value = species.get("fraction_total_reads");
-				entry = new PipelineProvidedMetadataEntry(value, "float", analysis);
-				if (speciesNum == 1) {
-					key = workflowName + "/" + "proportion";
-				} else {
-					key = workflowName + "/" + "proportion_" + speciesNum;
-				}
-				metadataEntries.put(key, entry);
-				speciesNum++;
+		if (kraken2ReportTask != null) {
+			Kraken2ReportIndex kraken2Report;
+			try {
+				kraken2Report = awaitParse(kraken2ReportTask);
+			} catch (InterruptedIOException e) {
+				throw e;
+			} catch (IOException e) {
+				// the kraken2 report is optional, so the species are still written without it
+				logger.warn("Could not read kraken2_report for sample=" + sample.getId() + " in analysisSubmission="
+						+ analysis.getId(), e);
+				recordFailure(UpdaterPhase.PARSE, e);
+				kraken2Report = null;
 			}
-			//convert the string/entry Map to a Set of MetadataEntry
-			Set<MetadataEntry> metadataSet = metadataTemplateService.convertMetadataStringsToSet(metadataEntries);
+			if (kraken2Report != null) {
+				addKraken2ReportEntries(metadataEntries, plan, kraken2Report, analysis);
+				addQualityEntries(metadataEntries, plan, report, kraken2Report, analysis);
+			}
+		}
 
-			// merges with existing sample metadata and does an update of the sample metadata.
-			sampleService.mergeSampleMetadata(sample,metadataSet);
+		return metadataEntries;
+	}
+
+	/**
+	 * Adds the taxonomy level and the name, taxonomy id and proportion (and
+	 * lineage) of each reported species. The keys are the ones already built by
+	 * the {@link MetadataFieldPlan}, so only the entries themselves are created.
+	 *
+	 * @param metadataEntries   The metadata entries to add to, by key.
+	 * @param plan              The {@link MetadataFieldPlan} for the workflow.
+	 * @param speciesAbundances The reported species, from most to least
+	 *                          abundant.
+	 * @param resolver          The {@link TaxonomyLineageResolver}, or null to
+	 *                          leave out the lineage fields.
+	 * @param analysis          The {@link AnalysisSubmission}.
+	 */
+	@VisibleForTesting
+	static void addSpeciesEntries(Map<String, MetadataEntry> metadataEntries, MetadataFieldPlan plan,
+			List<SpeciesAbundance> speciesAbundances, TaxonomyLineageResolver resolver, AnalysisSubmission analysis) {
+		if (speciesAbundances.isEmpty()) {
+			return;
+		}
+		// taxonomy_level is only recorded once per sample. (should be identical for all lines in a report.)
+		metadataEntries.put(plan.getTaxonomyLevelKey(),
+				new PipelineProvidedMetadataEntry(speciesAbundances.get(0).getTaxonomyLevel(), "text", analysis));
+
+		for (int rank = 0; rank < speciesAbundances.size(); rank++) {
+			SpeciesAbundance species = speciesAbundances.get(rank);
+			metadataEntries.put(plan.getTaxonNameKey(rank),
+					new PipelineProvidedMetadataEntry(species.getName(), "text", analysis));
+			metadataEntries.put(plan.getTaxonomyIdKey(rank),
+					new PipelineProvidedMetadataEntry(Integer.toString(species.getTaxonomyId()), "text", analysis));
+			metadataEntries.put(plan.getProportionKey(rank),
+					new PipelineProvidedMetadataEntry(species.getFractionTotalReadsText(), "float", analysis));
+
+			if (resolver != null) {
+				addLineageEntries(metadataEntries, plan, resolver, species.getTaxonomyId(), rank, analysis);
+			}
+		}
+	}
+
+	/**
+	 * Writes a {@link ProfileSidecar}. The sidecar is secondary to the metadata,
+	 * so a failure is logged rather than failing the update.
+	 *
+	 * @param profile     The full {@link AbundanceProfile}.
+	 * @param sidecarPath The sidecar file to write.
+	 */
+	private void writeProfileSidecar(AbundanceProfile profile, Path sidecarPath) {
+		try {
+			Files.createDirectories(sidecarPath.getParent());
+			ProfileSidecar.write(profile, sidecarPath);
 		} catch (IOException e) {
-			throw new PostProcessingException("Error parsing species abundance file", e);
-		} catch (IridaWorkflowNotFoundException e) {
-			throw new PostProcessingException("Could not find workflow for id=" + analysis.getWorkflowId(), e);
+			logger.warn("Could not write profile sidecar " + sidecarPath, e);
+			recordFailure(UpdaterPhase.SIDECAR, e);
+		}
+	}
+
+	/**
+	 * Adds the genus and family of a reported species, from the NCBI taxonomy.
+	 * Fields are left out when the species has no ancestor at the rank, the
+	 * ancestor has no scientific name, or the species is not in the taxonomy.
+	 *
+	 * @param metadataEntries The metadata entries to add to, by key.
+	 * @param plan            The {@link MetadataFieldPlan} for the workflow.
+	 * @param resolver        The {@link TaxonomyLineageResolver}.
+	 * @param taxonomyId      The taxonomy id of the species.
+	 * @param rank            The (zero-based) rank of the species, by abundance.
+	 * @param analysis        The {@link AnalysisSubmission}.
+	 */
+	private static void addLineageEntries(Map<String, MetadataEntry> metadataEntries, MetadataFieldPlan plan,
+			TaxonomyLineageResolver resolver, int taxonomyId, int rank, AnalysisSubmission analysis) {
+		int genus = resolver.findAncestor(taxonomyId, Kraken2ReportIndex.GENUS);
+		String genusName = genus >= 0 ? resolver.getName(genus) : null;
+		if (genusName != null) {
+			metadataEntries.put(plan.getGenusKey(rank), new PipelineProvidedMetadataEntry(genusName, "text", analysis));
 		}
+
+		int family = resolver.findAncestor(taxonomyId, Kraken2ReportIndex.FAMILY);
+		String familyName = family >= 0 ? resolver.getName(family) : null;
+		if (familyName != null) {
+			metadataEntries.put(plan.getFamilyKey(rank),
+					new PipelineProvidedMetadataEntry(familyName, "text", analysis));
+		}
+	}
+
+	/**
+	 * Adds a summary of a kraken2 report to the metadata: the proportion of reads
+	 * which were not classified, and the most abundant genus and family.
+	 *
+	 * @param metadataEntries The metadata entries to add to.
+	 * @param plan            The {@link MetadataFieldPlan} for the workflow.
+	 * @param kraken2Report   The index of the kraken2 report.
+	 * @param analysis        The {@link AnalysisSubmission} providing the metadata.
+	 */
+	private void addKraken2ReportEntries(Map<String, MetadataEntry> metadataEntries, MetadataFieldPlan plan,
+			Kraken2ReportIndex kraken2Report, AnalysisSubmission analysis) {
+		metadataEntries.put(plan.getUnclassifiedProportionKey(), new PipelineProvidedMetadataEntry(
+				formatProportion(kraken2Report.getUnclassifiedFraction()), "float", analysis));
+
+		int genus = kraken2Report.findMostAbundant(Kraken2ReportIndex.GENUS);
+		if (genus != -1) {
+			metadataEntries.put(plan.getTopGenusKey(),
+					new PipelineProvidedMetadataEntry(kraken2Report.getName(genus), "text", analysis));
+			metadataEntries.put(plan.getTopGenusProportionKey(), new PipelineProvidedMetadataEntry(
+					formatProportion(kraken2Report.getCladeFraction(genus)), "float", analysis));
+		}
+
+		int family = kraken2Report.findMostAbundant(Kraken2ReportIndex.FAMILY);
+		if (family != -1) {
+			metadataEntries.put(plan.getTopFamilyKey(),
+					new PipelineProvidedMetadataEntry(kraken2Report.getName(family), "text", analysis));
+			metadataEntries.put(plan.getTopFamilyProportionKey(), new PipelineProvidedMetadataEntry(
+					formatProportion(kraken2Report.getCladeFraction(family)), "float", analysis));
+		}
+	}
+
+	/**
+	 * Adds quality metrics comparing the bracken and kraken2 outputs: the
+	 * proportion of all reads which kraken2 classified, the proportion which
+	 * bracken estimated at the species level, and the proportion bracken
+	 * reassigned to species from higher levels. The bracken metrics need every
+	 * row, so they are left out (and so cleared) when parsing stopped early.
+	 *
+	 * @param metadataEntries The metadata entries to add to.
+	 * @param plan            The {@link MetadataFieldPlan} for the workflow.
+	 * @param report          The parsed species abundance file.
+	 * @param kraken2Report   The index of the kraken2 report.
+	 * @param analysis        The {@link AnalysisSubmission} providing the metadata.
+	 */
+	private void addQualityEntries(Map<String, MetadataEntry> metadataEntries, MetadataFieldPlan plan,
+			SpeciesAbundanceReport report, Kraken2ReportIndex kraken2Report, AnalysisSubmission analysis) {
+		long totalReads = kraken2Report.getTotalReads();
+		if (totalReads == 0) {
+			return;
+		}
+
+		metadataEntries.put(plan.getKraken2ClassifiedProportionKey(), new PipelineProvidedMetadataEntry(
+				formatProportion(1.0 - kraken2Report.getUnclassifiedFraction()), "float", analysis));
+		if (report.complete) {
+			metadataEntries.put(plan.getBrackenSpeciesProportionKey(), new PipelineProvidedMetadataEntry(
+					formatProportion((double) report.totalEstimatedReads / totalReads), "float", analysis));
+			metadataEntries.put(plan.getBrackenReassignedProportionKey(), new PipelineProvidedMetadataEntry(
+					formatProportion((double) report.totalAddedReads / totalReads), "float", analysis));
+		}
+	}
+
+	/**
+	 * Formats a proportion the same way bracken does, with five decimal places.
+	 *
+	 * @param proportion The proportion.
+	 * @return The formatted proportion.
+	 */
+	private static String formatProportion(double proportion) {
+		return String.format(Locale.ROOT, "%.5f", proportion);
 	}
 
 	/**
-	 * Parses out the read count from the passed file.
+	 * Parses out the most abundant species from the passed file.
 	 *
 	 * @param speciesAbundanceFilePath The file containing the species abundance. The file contents
 	 *                      should look like:
@@ -154,54 +737,88 @@ public class SpeciesAbundancePluginUpdater implements AnalysisSampleUpdater {
 	 *                      Salmonella enterica	28901	S	433515	32457	465972	0.99016
 	 *                      </pre>
 	 *
-	 * @return A {@link Map<String, String>} containing the read count.
+	 *                      The header line is optional and the rows do not need to be sorted.
+	 *
+	 * @return A {@link List} of at most {@link ReportingThresholds#DEFAULT_TOP_N} {@link SpeciesAbundance}s,
+	 *         ordered from most to least abundant.
 	 * @throws IOException If there was an error reading the file.
 	 */
 	@VisibleForTesting
-	List<Map<String, String>> parseSpeciesAbundanceFile(Path speciesAbundanceFilePath) throws IOException {
-		BufferedReader speciesAbundanceReader = new BufferedReader(new FileReader(speciesAbundanceFilePath.toFile()));
-		List<Map<String, String>> abundances = new ArrayList<>();
-		ArrayList<String> expectedHeaderFields = new ArrayList<String>(Arrays.asList(
-				"name",
-		        "taxonomy_id",
-		        "taxonomy_lvl",
-		        "kraken_assigned_reads",
-		        "added_reads",
-		        "new_est_reads",
-		        "fraction_total_reads"
-		));
-		try {
-			String headerLine = speciesAbundanceReader.readLine();
-			ArrayList<String> headerFields = new ArrayList<String>(Arrays.asList(headerLine.split("\t")));
-			String abundancesLine;
-			if (!headerFields.equals(expectedHeaderFields)) { // header not present
-					abundancesLine = headerLine;
-					headerFields = expectedHeaderFields;
-			} else {
-				abundancesLine = speciesAbundanceReader.readLine();
-				ArrayList<String> speciesAbundanceFields = new ArrayList<String>(Arrays.asList(abundancesLine.split("\t")));
-				Map<String, String> speciesAbundanceMap = new HashMap<>();
-				assert headerFields.size() == speciesAbundanceFields.size();
-				for (int j = 0; j < headerFields.size(); j++) {
-					speciesAbundanceMap.put(headerFields.get(j), speciesAbundanceFields.get(j));
-				}
-				abundances.add(speciesAbundanceMap);
-			}
-			for (int i = 0; i < (NUM_SPECIES_TO_REPORT - 1); i++) {
-				abundancesLine = speciesAbundanceReader.readLine();
-				ArrayList<String> speciesAbundanceFields = new ArrayList<String>(Arrays.asList(abundancesLine.split("\t")));
-				Map<String, String> speciesAbundanceMap = new HashMap<>();
-				assert headerFields.size() == speciesAbundanceFields.size();
-				for (int j = 0; j < headerFields.size(); j++) {
-					speciesAbundanceMap.put(headerFields.get(j), speciesAbundanceFields.get(j));
-				}
-				abundances.add(speciesAbundanceMap);
-			}
-		} finally {
-			speciesAbundanceReader.close();
-		}
+	List<SpeciesAbundance> parseSpeciesAbundanceFile(Path speciesAbundanceFilePath) throws IOException {
+		return parseSpeciesAbundanceFile(speciesAbundanceFilePath, null, ReportingThresholds.DEFAULT);
+	}
+
+	/**
+	 * Parses the most abundant species out of a species abundance file, also
+	 * collecting every row into a profile.
+	 *
+	 * @param speciesAbundanceFilePath The species abundance file.
+	 * @param profile                  An {@link AbundanceProfile} to add every row
+	 *                                 to, or null.
+	 * @param thresholds               The {@link ReportingThresholds} of the
+	 *                                 species to report.
+	 * @return The most abundant species, from most to least abundant.
+	 * @throws IOException If there was an error parsing the file.
+	 */
+	@VisibleForTesting
+	List<SpeciesAbundance> parseSpeciesAbundanceFile(Path speciesAbundanceFilePath, AbundanceProfile profile,
+			ReportingThresholds thresholds) throws IOException {
+		return parseSpeciesAbundanceReport(speciesAbundanceFilePath, profile, thresholds).speciesAbundances;
+	}
+
+	/**
+	 * Parses a species abundance file into a {@link SpeciesAbundanceReport}.
+	 *
+	 * @param speciesAbundanceFilePath The species abundance file.
+	 * @param profile                  An {@link AbundanceProfile} to add every row
+	 *                                 to, or null.
+	 * @param thresholds               The {@link ReportingThresholds} of the
+	 *                                 species to report.
+	 * @return The {@link SpeciesAbundanceReport}.
+	 * @throws IOException If there was an error parsing the file.
+	 */
+	private SpeciesAbundanceReport parseSpeciesAbundanceReport(Path speciesAbundanceFilePath,
+			AbundanceProfile profile, ReportingThresholds thresholds) throws IOException {
+		UpdaterEvents.Parse event = new UpdaterEvents.Parse();
+		event.begin();
+		long start = System.nanoTime();
+
+		SpeciesAbundanceParser parser = new SpeciesAbundanceParser(thresholds.getTopN());
+		parser.setMinimums(thresholds.getMinimumFraction(), thresholds.getMinimumReads());
+		parser.setAssumeSorted(assumeSortedInput);
+		parser.setProfile(profile);
+		List<SpeciesAbundance> speciesAbundances = parser.parse(speciesAbundanceFilePath);
+
+		metrics.recordPhase(UpdaterPhase.PARSE, System.nanoTime() - start);
+		metrics.recordParse("species_abundance", parser.getRowsScanned(), parser.getBytesRead());
+		event.outputName = "species_abundance";
+		event.rowsScanned = parser.getRowsScanned();
+		event.bytesRead = parser.getBytesRead();
+		event.commit();
+		return new SpeciesAbundanceReport(speciesAbundances, parser);
+	}
+
+	/**
+	 * Reads a kraken2 report into a {@link Kraken2ReportIndex}.
+	 *
+	 * @param kraken2ReportFilePath The kraken2 report file.
+	 * @return The {@link Kraken2ReportIndex}.
+	 * @throws IOException If there was an error reading the file.
+	 */
+	private Kraken2ReportIndex readKraken2Report(Path kraken2ReportFilePath) throws IOException {
+		UpdaterEvents.Parse event = new UpdaterEvents.Parse();
+		event.begin();
+		long start = System.nanoTime();
+
+		Kraken2ReportIndex kraken2Report = Kraken2ReportIndex.read(kraken2ReportFilePath);
 
-		return abundances;
+		metrics.recordPhase(UpdaterPhase.PARSE, System.nanoTime() - start);
+		metrics.recordParse("kraken2_report", kraken2Report.size(), kraken2Report.getBytesRead());
+		event.outputName = "kraken2_report";
+		event.rowsScanned = kraken2Report.size();
+		event.bytesRead = kraken2Report.getBytesRead();
+		event.commit();
+		return kraken2Report;
 	}
 
 	/**
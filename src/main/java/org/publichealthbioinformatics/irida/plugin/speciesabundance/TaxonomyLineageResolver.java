@@ -0,0 +1,479 @@
+package org.publichealthbioinformatics.irida.plugin.speciesabundance;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves the lineage of taxa using the NCBI taxonomy (the
+ * <strong>nodes.dmp</strong> and <strong>names.dmp</strong> files of a
+ * taxonomy dump, as used to build kraken2 databases).
+ *
+ * <p>
+ * The text dump is parsed once into a compact binary cache file, which is
+ * memory-mapped on later loads: a parent array, a rank array and a name offset
+ * array, each indexed by taxonomy id, followed by the scientific names. The
+ * cache is kept in a directory of its own (by default, under the system
+ * temporary directory), never in the taxonomy dump, and is rebuilt whenever it
+ * is older than the dump or cannot be read (e.g. it was written by another
+ * version, or is truncated). If the cache file cannot be written, the parsed
+ * taxonomy is kept in memory instead. Walking up the lineage of a taxon reads
+ * directly from the cache and does not allocate.
+ * </p>
+ *
+ * <p>
+ * Ranks use the same codes as a kraken2 report (e.g.
+ * {@link Kraken2ReportIndex#GENUS}), and ranks without a code (e.g. 'clade')
+ * are {@link #NO_RANK}.
+ * </p>
+ */
+public class TaxonomyLineageResolver {
+
+	/**
+	 * The rank code for a taxon without one of the named ranks.
+	 */
+	public static final char NO_RANK = '-';
+
+	/**
+	 * The directory cache files are written to by default.
+	 */
+	static final Path DEFAULT_CACHE_DIRECTORY = Paths.get(System.getProperty("java.io.tmpdir"), "species-abundance");
+
+	private static final Logger logger = LoggerFactory.getLogger(TaxonomyLineageResolver.class);
+
+	private static final int MAGIC = 0x53415458; // "SATX"
+	private static final int VERSION = 1;
+	private static final int HEADER_LENGTH = 4 * Integer.BYTES;
+
+	private static final int NONE = -1;
+
+	/**
+	 * The longest lineage to walk, to protect against cycles in a corrupt dump.
+	 */
+	private static final int MAX_DEPTH = 256;
+
+	private static final String FIELD_SEPARATOR = "\t|\t";
+
+	private static final Map<Path, TaxonomyLineageResolver> SHARED_RESOLVERS = new HashMap<>();
+
+	private final ByteBuffer contents;
+	private final int length;
+	private final int ranksOffset;
+	private final int nameOffsetsOffset;
+	private final int namesOffset;
+
+	private TaxonomyLineageResolver(ByteBuffer contents) throws IOException {
+		this.contents = contents;
+		if (contents.capacity() < HEADER_LENGTH || contents.getInt(0) != MAGIC
+				|| contents.getInt(Integer.BYTES) != VERSION) {
+			throw new IOException("Not a taxonomy cache file (version " + VERSION + ")");
+		}
+		length = contents.getInt(2 * Integer.BYTES);
+		int namesLength = contents.getInt(3 * Integer.BYTES);
+		if (length < 0 || namesLength < 0
+				|| HEADER_LENGTH + length * (2L * Integer.BYTES + 1) + namesLength != contents.capacity()) {
+			throw new IOException("Taxonomy cache file is truncated");
+		}
+		ranksOffset = HEADER_LENGTH + length * Integer.BYTES;
+		nameOffsetsOffset = ranksOffset + length;
+		namesOffset = nameOffsetsOffset + length * Integer.BYTES;
+	}
+
+	/**
+	 * Gets the cache file for a taxonomy dump, named after a SHA-256 digest of
+	 * the real path of the dump and the size and modification time of its
+	 * files, so that several dumps can share a cache directory and a replaced
+	 * dump gets a new cache file.
+	 *
+	 * @param cacheDirectory    The directory to keep cache files in.
+	 * @param taxonomyDirectory The directory of the taxonomy dump.
+	 * @return The cache file.
+	 * @throws IOException If the taxonomy dump could not be read.
+	 */
+	static Path getCacheFile(Path cacheDirectory, Path taxonomyDirectory) throws IOException {
+		Path dump = taxonomyDirectory.toRealPath();
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+		StringBuilder key = new StringBuilder(dump.toString());
+		for (String fileName : new String[] { "nodes.dmp", "names.dmp" }) {
+			Path file = dump.resolve(fileName);
+			key.append('\0').append(Files.size(file)).append('\0')
+					.append(Files.getLastModifiedTime(file).toMillis());
+		}
+		StringBuilder name = new StringBuilder("species-abundance-taxonomy-");
+		for (byte b : digest.digest(key.toString().getBytes(StandardCharsets.UTF_8))) {
+			name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return cacheDirectory.resolve(name.append(".bin").toString());
+	}
+
+	/**
+	 * Loads the taxonomy in a directory containing <strong>nodes.dmp</strong>
+	 * and <strong>names.dmp</strong>, using (and if needed, building) a cache
+	 * file in the {@link #DEFAULT_CACHE_DIRECTORY}.
+	 *
+	 * @param taxonomyDirectory The directory of the taxonomy dump.
+	 * @return The {@link TaxonomyLineageResolver}.
+	 * @throws IOException If there was an error reading the taxonomy.
+	 */
+	public static TaxonomyLineageResolver load(Path taxonomyDirectory) throws IOException {
+		return load(taxonomyDirectory, getCacheFile(DEFAULT_CACHE_DIRECTORY, taxonomyDirectory));
+	}
+
+	/**
+	 * Loads the taxonomy in a directory containing <strong>nodes.dmp</strong>
+	 * and <strong>names.dmp</strong>, using (and if needed, building) the given
+	 * cache file. The cache file is rebuilt if it is older than the dump or
+	 * cannot be read. If it needs to be built but cannot be written, the
+	 * taxonomy is kept in memory.
+	 *
+	 * @param taxonomyDirectory The directory of the taxonomy dump.
+	 * @param cacheFile         The cache file.
+	 * @return The {@link TaxonomyLineageResolver}.
+	 * @throws IOException If there was an error reading the taxonomy.
+	 */
+	public static TaxonomyLineageResolver load(Path taxonomyDirectory, Path cacheFile) throws IOException {
+		Path nodesFile = taxonomyDirectory.resolve("nodes.dmp");
+		Path namesFile = taxonomyDirectory.resolve("names.dmp");
+
+		if (Files.exists(cacheFile)
+				&& Files.getLastModifiedTime(cacheFile).compareTo(Files.getLastModifiedTime(nodesFile)) >= 0
+				&& Files.getLastModifiedTime(cacheFile).compareTo(Files.getLastModifiedTime(namesFile)) >= 0) {
+			try {
+				return mapCache(cacheFile);
+			} catch (IOException e) {
+				// e.g. written by another version of the plugin, or cut short
+				logger.warn("Could not read taxonomy cache file " + cacheFile + ", rebuilding it", e);
+			}
+		}
+
+		ByteBuffer cache = buildCache(nodesFile, namesFile);
+		try {
+			writeCache(cache, cacheFile);
+		} catch (IOException e) {
+			logger.warn("Could not write taxonomy cache file " + cacheFile + ", keeping the taxonomy in memory", e);
+			return new TaxonomyLineageResolver(cache);
+		}
+		try {
+			return mapCache(cacheFile);
+		} catch (IOException e) {
+			throw new IOException("Could not read " + cacheFile + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Memory-maps a cache file.
+	 */
+	private static TaxonomyLineageResolver mapCache(Path cacheFile) throws IOException {
+		try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+			return new TaxonomyLineageResolver(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * Loads the taxonomy in a directory, or returns the taxonomy already loaded
+	 * by this method, so that all updaters share a single copy.
+	 *
+	 * @param taxonomyDirectory The directory of the taxonomy dump.
+	 * @param cacheDirectory    The directory to keep the cache file in, or null
+	 *                          for the {@link #DEFAULT_CACHE_DIRECTORY}.
+	 * @return The {@link TaxonomyLineageResolver}.
+	 * @throws IOException If there was an error reading the taxonomy.
+	 */
+	static TaxonomyLineageResolver loadShared(Path taxonomyDirectory, Path cacheDirectory) throws IOException {
+		Path key = taxonomyDirectory.toAbsolutePath().normalize();
+		synchronized (SHARED_RESOLVERS) {
+			TaxonomyLineageResolver resolver = SHARED_RESOLVERS.get(key);
+			if (resolver == null) {
+				resolver = load(key,
+						getCacheFile(cacheDirectory == null ? DEFAULT_CACHE_DIRECTORY : cacheDirectory, key));
+				SHARED_RESOLVERS.put(key, resolver);
+			}
+			return resolver;
+		}
+	}
+
+	/**
+	 * Parses the taxonomy dump into the contents of a cache file:
+	 *
+	 * <pre>
+	 * int magic, int version, int length (the largest taxonomy id + 1), int namesLength
+	 * int[length] parents (-1 for none)
+	 * byte[length] ranks
+	 * int[length] nameOffsets (-1 for none)
+	 * byte[namesLength] names, each a short length followed by UTF-8 bytes
+	 * </pre>
+	 */
+	private static ByteBuffer buildCache(Path nodesFile, Path namesFile) throws IOException {
+		int[] parents = new int[1 << 16];
+		byte[] ranks = new byte[parents.length];
+		int length = 0;
+		Arrays.fill(parents, NONE);
+
+		try (BufferedReader reader = Files.newBufferedReader(nodesFile, StandardCharsets.UTF_8)) {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				int end1 = line.indexOf(FIELD_SEPARATOR);
+				int end2 = end1 < 0 ? -1 : line.indexOf(FIELD_SEPARATOR, end1 + FIELD_SEPARATOR.length());
+				int end3 = end2 < 0 ? -1 : line.indexOf(FIELD_SEPARATOR, end2 + FIELD_SEPARATOR.length());
+				if (end3 < 0) {
+					throw new IOException("Line " + lineNumber + " of " + nodesFile + " has fewer than 3 fields");
+				}
+				int taxonomyId = parseTaxonomyId(line.substring(0, end1), nodesFile, lineNumber);
+				int parent = parseTaxonomyId(line.substring(end1 + FIELD_SEPARATOR.length(), end2), nodesFile,
+						lineNumber);
+				String rank = line.substring(end2 + FIELD_SEPARATOR.length(), end3);
+
+				if (taxonomyId >= parents.length) {
+					int capacity = Math.max(taxonomyId + 1, parents.length * 2);
+					int oldCapacity = parents.length;
+					parents = Arrays.copyOf(parents, capacity);
+					Arrays.fill(parents, oldCapacity, capacity, NONE);
+					ranks = Arrays.copyOf(ranks, capacity);
+				}
+				// the root is its own parent in the dump
+				parents[taxonomyId] = parent == taxonomyId ? NONE : parent;
+				ranks[taxonomyId] = (byte) rankCode(rank);
+				length = Math.max(length, taxonomyId + 1);
+			}
+		}
+
+		int[] nameOffsets = new int[length];
+		Arrays.fill(nameOffsets, NONE);
+		byte[] names = new byte[1 << 20];
+		int namesLength = 0;
+		try (BufferedReader reader = Files.newBufferedReader(namesFile, StandardCharsets.UTF_8)) {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				if (!line.contains("scientific name")) {
+					continue;
+				}
+				String[] fields = line.split("\t\\|\t?", -1);
+				if (fields.length < 4 || !"scientific name".equals(fields[3])) {
+					continue;
+				}
+				int taxonomyId = parseTaxonomyId(fields[0], namesFile, lineNumber);
+				if (taxonomyId >= length) {
+					continue;
+				}
+				byte[] name = fields[1].getBytes(StandardCharsets.UTF_8);
+				int nameLength = truncatedLength(name, Short.MAX_VALUE);
+				if (namesLength + Short.BYTES + nameLength > names.length) {
+					names = Arrays.copyOf(names, Math.max(names.length * 2, namesLength + Short.BYTES + nameLength));
+				}
+				nameOffsets[taxonomyId] = namesLength;
+				names[namesLength++] = (byte) (nameLength >>> 8);
+				names[namesLength++] = (byte) nameLength;
+				System.arraycopy(name, 0, names, namesLength, nameLength);
+				namesLength += nameLength;
+			}
+		}
+
+		ByteBuffer cache = ByteBuffer.allocate(HEADER_LENGTH + length * (2 * Integer.BYTES + 1) + namesLength);
+		cache.putInt(MAGIC).putInt(VERSION).putInt(length).putInt(namesLength);
+		cache.asIntBuffer().put(parents, 0, length);
+		cache.position(cache.position() + length * Integer.BYTES);
+		cache.put(ranks, 0, length);
+		cache.asIntBuffer().put(nameOffsets, 0, length);
+		cache.position(cache.position() + length * Integer.BYTES);
+		cache.put(names, 0, namesLength);
+		cache.flip();
+		return cache;
+	}
+
+	/**
+	 * Writes a cache file, replacing it atomically if it exists. The contents
+	 * are written to a temporary file of their own in the same directory, so
+	 * that processes building the same cache at once do not write over each
+	 * other.
+	 */
+	private static void writeCache(ByteBuffer cache, Path cacheFile) throws IOException {
+		Path directory = cacheFile.toAbsolutePath().getParent();
+		Files.createDirectories(directory);
+		Path temporaryFile = Files.createTempFile(directory, cacheFile.getFileName() + ".", ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE)) {
+				while (cache.hasRemaining()) {
+					channel.write(cache);
+				}
+				channel.force(true);
+			}
+			Files.move(temporaryFile, cacheFile, StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			Files.deleteIfExists(temporaryFile);
+			throw e;
+		}
+	}
+
+	/**
+	 * Gets the length of a UTF-8 name truncated to at most a number of bytes,
+	 * without splitting a character.
+	 *
+	 * @param name      The UTF-8 bytes of the name.
+	 * @param maxLength The maximum number of bytes.
+	 * @return The number of bytes to keep.
+	 */
+	static int truncatedLength(byte[] name, int maxLength) {
+		if (name.length <= maxLength) {
+			return name.length;
+		}
+		int length = maxLength;
+		// back up over continuation bytes (10xxxxxx) to the start of the character
+		while (length > 0 && (name[length] & 0xC0) == 0x80) {
+			length--;
+		}
+		return length;
+	}
+
+	private static int parseTaxonomyId(String field, Path file, int lineNumber) throws IOException {
+		try {
+			int taxonomyId = Integer.parseInt(field.trim());
+			if (taxonomyId < 0) {
+				throw new NumberFormatException();
+			}
+			return taxonomyId;
+		} catch (NumberFormatException e) {
+			throw new IOException("Line " + lineNumber + " of " + file + " has an invalid taxonomy id '" + field + "'");
+		}
+	}
+
+	/**
+	 * Converts an NCBI rank to the rank code used in kraken2 reports.
+	 *
+	 * @param rank The NCBI rank (e.g. 'genus').
+	 * @return The rank code, or {@link #NO_RANK}.
+	 */
+	static char rankCode(String rank) {
+		switch (rank) {
+		case "superkingdom":
+		case "domain":
+			return Kraken2ReportIndex.DOMAIN;
+		case "kingdom":
+			return Kraken2ReportIndex.KINGDOM;
+		case "phylum":
+			return Kraken2ReportIndex.PHYLUM;
+		case "class":
+			return Kraken2ReportIndex.CLASS;
+		case "order":
+			return Kraken2ReportIndex.ORDER;
+		case "family":
+			return Kraken2ReportIndex.FAMILY;
+		case "genus":
+			return Kraken2ReportIndex.GENUS;
+		case "species":
+			return Kraken2ReportIndex.SPECIES;
+		default:
+			return NO_RANK;
+		}
+	}
+
+	/**
+	 * Checks whether a taxon is in the taxonomy.
+	 *
+	 * @param taxonomyId The NCBI taxonomy id.
+	 * @return True if the taxonomy contains the taxon.
+	 */
+	public boolean contains(int taxonomyId) {
+		// every taxon in the dump has a rank code, even if it is NO_RANK
+		return taxonomyId >= 0 && taxonomyId < length && contents.get(ranksOffset + taxonomyId) != 0;
+	}
+
+	/**
+	 * Gets the parent of a taxon.
+	 *
+	 * @param taxonomyId The NCBI taxonomy id.
+	 * @return The taxonomy id of the parent, or -1 for the root or a taxon which
+	 *         is not in the taxonomy.
+	 */
+	public int getParent(int taxonomyId) {
+		return taxonomyId >= 0 && taxonomyId < length ? getParentUnchecked(taxonomyId) : NONE;
+	}
+
+	private int getParentUnchecked(int taxonomyId) {
+		return contents.getInt(HEADER_LENGTH + taxonomyId * Integer.BYTES);
+	}
+
+	/**
+	 * Gets the rank code of a taxon.
+	 *
+	 * @param taxonomyId The NCBI taxonomy id.
+	 * @return The rank code (e.g. {@link Kraken2ReportIndex#GENUS}), or
+	 *         {@link #NO_RANK}.
+	 */
+	public char getRank(int taxonomyId) {
+		if (!contains(taxonomyId)) {
+			return NO_RANK;
+		}
+		return (char) contents.get(ranksOffset + taxonomyId);
+	}
+
+	/**
+	 * Finds the ancestor of a taxon (or the taxon itself) at a given rank.
+	 *
+	 * @param taxonomyId The NCBI taxonomy id.
+	 * @param rank       The rank code (e.g. {@link Kraken2ReportIndex#GENUS}).
+	 * @return The taxonomy id of the ancestor, or -1 if the taxon has no
+	 *         ancestor at the rank or is not in the taxonomy.
+	 */
+	public int findAncestor(int taxonomyId, char rank) {
+		if (!contains(taxonomyId)) {
+			return NONE;
+		}
+		int taxon = taxonomyId;
+		for (int depth = 0; taxon != NONE && depth < MAX_DEPTH; depth++) {
+			if (contents.get(ranksOffset + taxon) == rank) {
+				return taxon;
+			}
+			taxon = getParent(taxon);
+		}
+		return NONE;
+	}
+
+	/**
+	 * Gets the scientific name of a taxon.
+	 *
+	 * @param taxonomyId The NCBI taxonomy id.
+	 * @return The name, or null if the taxon has no name or is not in the
+	 *         taxonomy.
+	 */
+	public String getName(int taxonomyId) {
+		if (taxonomyId < 0 || taxonomyId >= length) {
+			return null;
+		}
+		int offset = contents.getInt(nameOffsetsOffset + taxonomyId * Integer.BYTES);
+		if (offset == NONE) {
+			return null;
+		}
+		int nameLength = contents.getShort(namesOffset + offset);
+		byte[] name = new byte[nameLength];
+		for (int i = 0; i < nameLength; i++) {
+			name[i] = contents.get(namesOffset + offset + Short.BYTES + i);
+		}
+		return new String(name, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,87 @@
+package org.publichealthbioinformatics.irida.plugin.speciesabundance;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events emitted by the
+ * {@link SpeciesAbundancePluginUpdater}. When no recording is running,
+ * committing an event does nothing.
+ */
+final class UpdaterEvents {
+
+	private static final String CATEGORY = "Species Abundance Plugin";
+
+	private UpdaterEvents() {
+	}
+
+	@Name("org.publichealthbioinformatics.speciesabundance.WorkflowLookup")
+	@Label("Workflow Lookup")
+	@Category({ "IRIDA", CATEGORY })
+	@Description("Looking up the workflow of an analysis submission")
+	static class WorkflowLookup extends Event {
+		@Label("Workflow Id")
+		String workflowId;
+
+		@Label("Cached")
+		boolean cached;
+	}
+
+	@Name("org.publichealthbioinformatics.speciesabundance.Parse")
+	@Label("Parse Analysis Output")
+	@Category({ "IRIDA", CATEGORY })
+	@Description("Parsing an analysis output file")
+	static class Parse extends Event {
+		@Label("Output Name")
+		String outputName;
+
+		@Label("Rows Scanned")
+		@Description("The rows consumed, not counting a row which only ended parsing early")
+		long rowsScanned;
+
+		@Label("Bytes Read")
+		@Description("The bytes read from the file, before any decompression")
+		@DataAmount
+		long bytesRead;
+	}
+
+	@Name("org.publichealthbioinformatics.speciesabundance.FieldResolution")
+	@Label("Metadata Field Resolution")
+	@Category({ "IRIDA", CATEGORY })
+	@Description("Resolving the metadata fields of a sample's metadata entries")
+	static class FieldResolution extends Event {
+		@Label("Entries")
+		int entries;
+	}
+
+	@Name("org.publichealthbioinformatics.speciesabundance.MetadataWrite")
+	@Label("Metadata Write")
+	@Category({ "IRIDA", CATEGORY })
+	@Description("Writing a sample's metadata to the database")
+	static class MetadataWrite extends Event {
+		@Label("Sample Id")
+		long sampleId;
+
+		@Label("Entries")
+		int entries;
+	}
+
+	@Name("org.publichealthbioinformatics.speciesabundance.UpdateFailure")
+	@Label("Update Failure")
+	@Category({ "IRIDA", CATEGORY })
+	@Description("A failed metadata update")
+	static class UpdateFailure extends Event {
+		@Label("Phase")
+		String phase;
+
+		@Label("Exception Type")
+		Class<?> exceptionType;
+
+		@Label("Message")
+		String message;
+	}
+}
@@ -0,0 +1,65 @@
+package org.publichealthbioinformatics.irida.plugin.speciesabundance;
+
+/**
+ * A sink for timings and counters from a {@link SpeciesAbundancePluginUpdater}.
+ * Every method does nothing by default, so implementations only need to
+ * override what they are interested in. Implementations must be thread-safe.
+ */
+public interface UpdaterMetrics {
+
+	/**
+	 * An {@link UpdaterMetrics} which discards everything.
+	 */
+	UpdaterMetrics NOOP = new UpdaterMetrics() {
+	};
+
+	/**
+	 * Records how long a phase of an update took.
+	 *
+	 * @param phase         The {@link UpdaterPhase}.
+	 * @param durationNanos The duration of the phase, in nanoseconds.
+	 */
+	default void recordPhase(UpdaterPhase phase, long durationNanos) {
+	}
+
+	/**
+	 * Records how much of an analysis output file was parsed.
+	 *
+	 * @param outputName  The name of the output (e.g. species_abundance).
+	 * @param rowsScanned The number of rows consumed, not counting a row which
+	 *                    only ended parsing early.
+	 * @param bytesRead   The number of bytes read from the file, before any
+	 *                    decompression.
+	 */
+	default void recordParse(String outputName, long rowsScanned, long bytesRead) {
+	}
+
+	/**
+	 * Records whether a cached result was used in place of doing the work of a
+	 * phase.
+	 *
+	 * @param phase The {@link UpdaterPhase}.
+	 * @param hit   True if a cached result was used.
+	 */
+	default void recordCache(UpdaterPhase phase, boolean hit) {
+	}
+
+	/**
+	 * Records how many of the metadata entries for a sample were unchanged from
+	 * the sample's existing metadata, or older than it, and so were not written.
+	 *
+	 * @param unchanged The number of entries not written.
+	 * @param total     The total number of entries.
+	 */
+	default void recordUnchangedEntries(int unchanged, int total) {
+	}
+
+	/**
+	 * Records a failed update.
+	 *
+	 * @param phase   The {@link UpdaterPhase} which failed.
+	 * @param failure The cause of the failure.
+	 */
+	default void recordFailure(UpdaterPhase phase, Throwable failure) {
+	}
+}
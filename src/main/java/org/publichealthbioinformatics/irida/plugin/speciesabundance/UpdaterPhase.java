@@ -0,0 +1,33 @@
+package org.publichealthbioinformatics.irida.plugin.speciesabundance;
+
+/**
+ * The phases of a {@link SpeciesAbundancePluginUpdater} update which are timed
+ * and reported to the {@link UpdaterMetrics}.
+ */
+public enum UpdaterPhase {
+
+	/**
+	 * Looking up the workflow of the analysis submission.
+	 */
+	WORKFLOW_LOOKUP,
+
+	/**
+	 * Parsing an analysis output file.
+	 */
+	PARSE,
+
+	/**
+	 * Resolving the metadata fields of the metadata entries.
+	 */
+	FIELD_RESOLUTION,
+
+	/**
+	 * Writing the metadata of a sample to the database.
+	 */
+	METADATA_WRITE,
+
+	/**
+	 * Writing the profile of a sample to a {@link ProfileSidecar} file.
+	 */
+	SIDECAR
+}
@@ -0,0 +1,147 @@
+package org.publichealthbioinformatics.irida.plugin.speciesabundance;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Kraken2ReportIndexTest {
+
+    private Kraken2ReportIndex index;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws Throwable {
+        Path kraken2ReportFilePath = Paths.get(ClassLoader.getSystemResource("kraken2_report.tsv").toURI());
+        index = Kraken2ReportIndex.read(kraken2ReportFilePath);
+    }
+
+    @Test
+    public void testReadTree() {
+        assertEquals(14, index.size());
+        assertEquals(0, index.getTaxonomyId(0));
+        assertEquals(Kraken2ReportIndex.UNCLASSIFIED, index.getRank(0));
+        assertEquals(-1, index.getParent(0));
+        assertEquals(-1, index.getParent(1));
+
+        // Escherichia coli -> Escherichia -> Enterobacteriaceae
+        assertEquals(562, index.getTaxonomyId(9));
+        assertEquals("Escherichia coli", index.getName(9));
+        assertEquals(2435000, index.getCladeReads(9));
+        assertEquals(2430000, index.getDirectReads(9));
+        assertEquals(8, index.getParent(9));
+        assertEquals("Escherichia", index.getName(index.getParent(9)));
+        assertEquals(7, index.getParent(8));
+
+        // a strain below species is at depth 1 below the species rank
+        assertEquals(Kraken2ReportIndex.SPECIES, index.getRank(10));
+        assertEquals(1, index.getRankDepth(10));
+        assertEquals(9, index.getParent(10));
+
+        // Enterobacter is a sibling of Escherichia
+        assertEquals(7, index.getParent(12));
+    }
+
+    @Test
+    public void testSummary() {
+        assertEquals(2840000, index.getTotalReads());
+        assertEquals(284000, index.getUnclassifiedReads());
+        assertEquals(0.1, index.getUnclassifiedFraction(), 1e-9);
+        assertEquals("Escherichia", index.getName(index.findMostAbundant(Kraken2ReportIndex.GENUS)));
+        assertEquals("Enterobacteriaceae", index.getName(index.findMostAbundant(Kraken2ReportIndex.FAMILY)));
+        assertEquals(-1, index.findMostAbundant(Kraken2ReportIndex.KINGDOM));
+    }
+
+    @Test
+    public void testReadMinimizerColumns() throws Throwable {
+        String report = " 10.00\t10\t10\t0\t0\tU\t0\tunclassified\n"
+                + " 90.00\t90\t0\t1200\t800\tR\t1\troot\n"
+                + " 90.00\t90\t90\t1200\t800\tG\t561\t  Escherichia\n";
+        Kraken2ReportIndex minimizerIndex = Kraken2ReportIndex.read(ByteBuffer.wrap(report.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(3, minimizerIndex.size());
+        assertEquals(561, minimizerIndex.getTaxonomyId(2));
+        assertEquals(1, minimizerIndex.getParent(2));
+        assertEquals("Escherichia", minimizerIndex.getName(2));
+        assertEquals(100, minimizerIndex.getTotalReads());
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadTooManyColumns() throws Throwable {
+        String report = " 10.00\t10\t10\t0\t0\tU\t0\tunclassified\textra\n";
+        Kraken2ReportIndex.read(ByteBuffer.wrap(report.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testReadNumbersOutOfRange() throws Throwable {
+        String[] reports = { " 10.00\t10\t10\tU\t4294967296\tunclassified\n",
+                " 10.00\t92233720368547758070\t10\tU\t0\tunclassified\n",
+                " 10.00\t10\t10\tS300\t562\tEscherichia coli\n" };
+        for (String report : reports) {
+            try {
+                Kraken2ReportIndex.read(ByteBuffer.wrap(report.getBytes(StandardCharsets.UTF_8)));
+                fail("should not read " + report.trim());
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("out of range"));
+            }
+        }
+    }
+
+    @Test
+    public void testReadGzip() throws Throwable {
+        Path kraken2ReportFilePath = Paths.get(ClassLoader.getSystemResource("kraken2_report.tsv").toURI());
+        Path compressedFilePath = temporaryFolder.newFile("kraken2_report.tsv.gz").toPath();
+        try (OutputStream output = new GZIPOutputStream(Files.newOutputStream(compressedFilePath))) {
+            Files.copy(kraken2ReportFilePath, output);
+        }
+
+        Kraken2ReportIndex compressed = Kraken2ReportIndex.read(compressedFilePath);
+        assertEquals(index.size(), compressed.size());
+        assertEquals(index.getTotalReads(), compressed.getTotalReads());
+        assertEquals("Escherichia coli", compressed.getName(9));
+        assertEquals(8, compressed.getParent(9));
+        assertEquals("should count the compressed bytes read from disk", Files.size(compressedFilePath),
+                compressed.getBytesRead());
+        assertEquals(Files.size(kraken2ReportFilePath), index.getBytesRead());
+    }
+
+    @Test
+    public void testReadGzipMembers() throws Throwable {
+        Path kraken2ReportFilePath = Paths.get(ClassLoader.getSystemResource("kraken2_report.tsv").toURI());
+        byte[] contents = Files.readAllBytes(kraken2ReportFilePath);
+        Path compressedFilePath = temporaryFolder.newFile("kraken2_report.tsv.bgz").toPath();
+        // the report is repeated across many gzip members, as bgzip writes them, so the
+        // size in the last trailer is much smaller than the whole report
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        try (OutputStream output = Files.newOutputStream(compressedFilePath)) {
+            for (int i = 0; i < 2000; i++) {
+                ByteArrayOutputStream member = new ByteArrayOutputStream();
+                try (OutputStream gzip = new GZIPOutputStream(member)) {
+                    gzip.write(contents);
+                }
+                member.writeTo(output);
+                expected.write(contents);
+            }
+        }
+
+        ByteBuffer uncompressed = CompressedFiles.readFully(compressedFilePath);
+        assertEquals(expected.size(), uncompressed.remaining());
+        assertTrue(expected.size() > 65536);
+        byte[] bytes = new byte[uncompressed.remaining()];
+        uncompressed.get(bytes);
+        assertArrayEquals(expected.toByteArray(), bytes);
+    }
+}
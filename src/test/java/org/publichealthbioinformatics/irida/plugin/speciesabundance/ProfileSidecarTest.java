@@ -0,0 +1,92 @@
+package org.publichealthbioinformatics.irida.plugin.speciesabundance;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+
+public class ProfileSidecarTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private AbundanceProfile profile;
+    private Path sidecarPath;
+
+    @Before
+    public void setUp() throws Throwable {
+        Path speciesAbundanceFilePath = Paths.get(ClassLoader.getSystemResource("species_abundance.tsv").toURI());
+        profile = new AbundanceProfile();
+        SpeciesAbundanceParser parser = new SpeciesAbundanceParser(1);
+        parser.setProfile(profile);
+        parser.parse(speciesAbundanceFilePath);
+
+        sidecarPath = temporaryFolder.getRoot().toPath().resolve("species_abundance.tsv" + ProfileSidecar.EXTENSION);
+        ProfileSidecar.write(profile, sidecarPath);
+    }
+
+    private void assertProfileEquals(ProfileSidecar sidecar) {
+        assertEquals(64, sidecar.size());
+        for (int row = 0; row < profile.size(); row++) {
+            assertEquals(profile.getTaxonomyId(row), sidecar.getTaxonomyId(row));
+            assertEquals(profile.getEstimatedReads(row), sidecar.getEstimatedReads(row));
+            assertEquals(profile.getFraction(row), sidecar.getFraction(row), 0.0);
+            assertEquals(profile.getName(row), sidecar.getName(row));
+        }
+    }
+
+    @Test
+    public void testRead() throws Throwable {
+        ProfileSidecar sidecar = ProfileSidecar.read(sidecarPath);
+        assertProfileEquals(sidecar);
+        assertEquals("Escherichia coli", sidecar.getName(0));
+        assertEquals(562, sidecar.getTaxonomyId(0));
+    }
+
+    @Test
+    public void testReadBuffer() throws Throwable {
+        byte[] contents = Files.readAllBytes(sidecarPath);
+        byte[] padded = new byte[contents.length + 3];
+        System.arraycopy(contents, 0, padded, 3, contents.length);
+        ByteBuffer buffer = ByteBuffer.wrap(padded);
+        buffer.position(3);
+
+        assertProfileEquals(ProfileSidecar.read(buffer));
+    }
+
+    @Test
+    public void testToAbundanceProfile() throws Throwable {
+        AbundanceProfile copy = ProfileSidecar.read(sidecarPath).toAbundanceProfile();
+        ProfileSidecar.write(copy, sidecarPath);
+        assertProfileEquals(ProfileSidecar.read(sidecarPath));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadTruncated() throws Throwable {
+        byte[] contents = Files.readAllBytes(sidecarPath);
+        ProfileSidecar.read(ByteBuffer.wrap(Arrays.copyOf(contents, contents.length - 1)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadRowCountOverflow() throws Throwable {
+        ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(sidecarPath)).order(ByteOrder.LITTLE_ENDIAN);
+        // the length of 2^30 rows overflows an int
+        contents.putInt(2 * Integer.BYTES, 1 << 30);
+        ProfileSidecar.read(contents);
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadInvalidNameOffset() throws Throwable {
+        ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(sidecarPath)).order(ByteOrder.LITTLE_ENDIAN);
+        int nameOffsetsOffset = 4 * Integer.BYTES + 64 * (Long.BYTES + Double.BYTES + Integer.BYTES);
+        contents.putInt(nameOffsetsOffset + Integer.BYTES, contents.getInt(3 * Integer.BYTES) + 1);
+        ProfileSidecar.read(contents);
+    }
+}
@@ -0,0 +1,432 @@
+package org.publichealthbioinformatics.irida.plugin.speciesabundance;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import ca.corefacility.bioinformatics.irida.model.sample.MetadataTemplateField;
+import ca.corefacility.bioinformatics.irida.model.sample.Sample;
+import ca.corefacility.bioinformatics.irida.model.sample.metadata.MetadataEntry;
+import ca.corefacility.bioinformatics.irida.model.sample.metadata.PipelineProvidedMetadataEntry;
+import ca.corefacility.bioinformatics.irida.model.sequenceFile.SingleEndSequenceFile;
+import ca.corefacility.bioinformatics.irida.model.workflow.IridaWorkflow;
+import ca.corefacility.bioinformatics.irida.model.workflow.analysis.Analysis;
+import ca.corefacility.bioinformatics.irida.model.workflow.analysis.AnalysisOutputFile;
+import ca.corefacility.bioinformatics.irida.model.workflow.description.IridaWorkflowDescription;
+import ca.corefacility.bioinformatics.irida.model.workflow.submission.AnalysisSubmission;
+import ca.corefacility.bioinformatics.irida.pipeline.results.updater.AnalysisSampleUpdater;
+import ca.corefacility.bioinformatics.irida.service.sample.MetadataTemplateService;
+import ca.corefacility.bioinformatics.irida.service.sample.SampleService;
+import ca.corefacility.bioinformatics.irida.service.workflow.IridaWorkflowsService;
+
+/**
+ * Drives many concurrent updates through the updater returned by
+ * {@link SpeciesAbundancePlugin.PluginInfo#getUpdater}, against in-memory
+ * stand-ins for the IRIDA services with a configurable latency, and checks the
+ * final metadata of every sample.
+ *
+ * <p>
+ * Each sample is analysed several times, each analysis with different outputs
+ * and a later creation date than the last, and every update runs concurrently
+ * with the others, including those of the same sample. Every sample must end up
+ * with exactly the fields of its newest analysis (any other field cleared), and
+ * every update must either write or be skipped for being older than what the
+ * sample already has. The stand-ins have no transactions, so when two updates
+ * of a sample overlap, the last to write wins, as with IRIDA's overlapping
+ * transactions: these lost updates are counted and reported rather than
+ * failing the test.
+ * </p>
+ *
+ * <p>
+ * By default this runs a small load as part of the tests, without printing
+ * anything. Larger loads, for sizing thread pools, are run by setting system
+ * properties, which also prints the throughput and latencies, e.g.
+ * </p>
+ *
+ * <pre>
+ * mvn test -Dtest=SpeciesAbundancePluginUpdaterLoadTest -Dspecies-abundance.load-test.threads=32 \
+ *     -Dspecies-abundance.load-test.updates=20000 -Dspecies-abundance.load-test.sample-latency-ms=5
+ * </pre>
+ *
+ * <p>
+ * Any of the plugin's own settings (e.g.
+ * <code>-Dspecies-abundance.assume-sorted=true</code>) apply to the
+ * updater under test.
+ * </p>
+ */
+public class SpeciesAbundancePluginUpdaterLoadTest {
+
+    private static final String PREFIX = "species-abundance.load-test.";
+
+    private static final String WORKFLOW_NAME = "species-abundance";
+
+    private static final long CREATED_MILLIS = 1_600_000_000_000L;
+
+    /**
+     * The output files each sample may have, as (species_abundance,
+     * kraken2_report) pairs.
+     */
+    private static final String[][] VARIANTS = {
+            { "species_abundance.tsv", "kraken2_report.tsv" },
+            { "species_abundance_short.tsv", null },
+            { "species_abundance_unsorted.tsv", "kraken2_report.tsv" },
+            { "species_abundance_no_header.tsv", null } };
+
+    private final int threads = Integer.getInteger(PREFIX + "threads", 8);
+    private final int sampleCount = Integer.getInteger(PREFIX + "samples", 50);
+    private final int updates = Integer.getInteger(PREFIX + "updates", 400);
+    private final long workflowLatencyMillis = Long.getLong(PREFIX + "workflow-latency-ms", 1);
+    private final long templateLatencyMillis = Long.getLong(PREFIX + "template-latency-ms", 1);
+    private final long sampleLatencyMillis = Long.getLong(PREFIX + "sample-latency-ms", 1);
+
+    private final UUID workflowId = UUID.randomUUID();
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        // the metadata each variant should leave behind, from a single update without any load
+        List<Map<String, String>> expected = new ArrayList<>();
+        for (int variant = 0; variant < VARIANTS.length; variant++) {
+            StandInServices services = new StandInServices(0, 0, 0);
+            Sample sample = sample(0);
+            services.updater().update(Collections.singletonList(sample), submission(0, variant));
+            expected.add(services.getMetadata(sample.getId()));
+        }
+
+        StandInServices services = new StandInServices(workflowLatencyMillis, templateLatencyMillis,
+                sampleLatencyMillis);
+        AnalysisSampleUpdater updater = services.updater();
+
+        // update i is the (i / sampleCount)th analysis of its sample, with the next variant of outputs
+        int[] variants = new int[updates];
+        List<List<Integer>> sampleUpdates = new ArrayList<>();
+        for (int i = 0; i < updates; i++) {
+            int sampleIndex = i % sampleCount;
+            variants[i] = (sampleIndex + i / sampleCount) % VARIANTS.length;
+            if (sampleIndex == sampleUpdates.size()) {
+                sampleUpdates.add(new ArrayList<>());
+            }
+            sampleUpdates.get(sampleIndex).add(i);
+        }
+
+        // every update runs as its own task, in a shuffled order, so analyses of the same sample run concurrently
+        List<Integer> order = new ArrayList<>(updates);
+        for (int i = 0; i < updates; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(0));
+        long[] latencies = new long[updates];
+        List<Callable<Void>> tasks = new ArrayList<>(updates);
+        for (int i : order) {
+            Sample sample = sample(i % sampleCount);
+            AnalysisSubmission submission = submission(i + 1, variants[i]);
+            tasks.add(() -> {
+                long start = System.nanoTime();
+                try {
+                    updater.update(Collections.singletonList(sample), submission);
+                    latencies[i] = System.nanoTime() - start;
+                } catch (Exception e) {
+                    latencies[i] = Long.MAX_VALUE;
+                }
+                return null;
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Future<Void> future : executor.invokeAll(tasks)) {
+            future.get();
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        int failures = 0;
+        for (long latency : latencies) {
+            if (latency == Long.MAX_VALUE) {
+                failures++;
+            }
+        }
+
+        int lostUpdates = 0;
+        int incorrectSamples = 0;
+        int unaccountedUpdates = 0;
+        for (int sampleIndex = 0; sampleIndex < sampleUpdates.size(); sampleIndex++) {
+            Long sampleId = sample(sampleIndex).getId();
+            // the stand-ins have no transactions, so when an update reads the metadata of a sample before another
+            // writes it, and writes after it, the last write wins. This is the lost update the README describes,
+            // and the only way a sample may end up without the metadata of its newest analysis
+            boolean overlapping = services.hasOverlappingWrites(sampleId);
+
+            // the sample has exactly the fields of its newest analysis, and any field of an older analysis which the
+            // newest one does not write is cleared (or was never written, if the older analysis completed later)
+            Map<String, String> expectedMetadata = expected
+                    .get(variants[Collections.max(sampleUpdates.get(sampleIndex))]);
+            Map<String, String> actualMetadata = services.getMetadata(sampleId);
+            actualMetadata.entrySet().removeIf(e -> !expectedMetadata.containsKey(e.getKey())
+                    && e.getValue().startsWith(" ("));
+            if (!expectedMetadata.equals(actualMetadata)) {
+                if (overlapping) {
+                    lostUpdates++;
+                } else {
+                    incorrectSamples++;
+                }
+            }
+
+            // an update which wrote nothing must have found the sample written by a newer analysis
+            Collection<Long> providers = services.getProviders(sampleId).values();
+            for (int i : sampleUpdates.get(sampleIndex)) {
+                long submissionId = i + 1;
+                if (!overlapping && !services.writers.contains(submissionId)
+                        && providers.stream().noneMatch(provider -> provider > submissionId)) {
+                    unaccountedUpdates++;
+                }
+            }
+        }
+        Arrays.sort(latencies);
+
+        if (isConfigured()) {
+            System.out.println(String.format(Locale.ROOT,
+                    "Load test: %d updates of %d samples on %d threads (latency: workflow=%dms, template=%dms, "
+                            + "sample=%dms)%n  throughput=%.1f updates/s, p50=%.2fms, p99=%.2fms, max=%.2fms%n"
+                            + "  failures=%d, samples with a lost update=%d, incorrect samples=%d, "
+                            + "updates skipped without a newer analysis=%d, metadata writes=%d",
+                    updates, sampleCount, threads, workflowLatencyMillis, templateLatencyMillis, sampleLatencyMillis,
+                    updates / (elapsedNanos / 1e9), percentile(latencies, 0.50) / 1e6,
+                    percentile(latencies, 0.99) / 1e6, latencies[updates - 1] / 1e6, failures, lostUpdates,
+                    incorrectSamples, unaccountedUpdates, services.writes.get()));
+        }
+
+        assertEquals("no update should fail", 0, failures);
+        assertEquals("every sample without a lost update should have the metadata of its newest analysis", 0,
+                incorrectSamples);
+        assertEquals("every update should write, or be older than the sample's metadata", 0, unaccountedUpdates);
+        assertTrue("no update should write more than once", services.writes.get() <= updates);
+    }
+
+    /**
+     * Whether a load was configured with system properties, so the results are
+     * worth printing.
+     */
+    private static boolean isConfigured() {
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(PREFIX)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[Math.max(0, (int) Math.ceil(percentile * sorted.length) - 1)];
+    }
+
+    private static Sample sample(int index) {
+        Sample sample = new Sample("sample" + index);
+        sample.setId(index + 1L);
+        return sample;
+    }
+
+    /**
+     * An analysis submission created a second after the one before it.
+     */
+    private AnalysisSubmission submission(long id, int variant) throws Exception {
+        Map<String, AnalysisOutputFile> outputs = new HashMap<>();
+        outputs.put("species_abundance", outputFile(VARIANTS[variant][0]));
+        if (VARIANTS[variant][1] != null) {
+            outputs.put("kraken2_report", outputFile(VARIANTS[variant][1]));
+        }
+        AnalysisSubmission built = AnalysisSubmission.builder(workflowId)
+                .inputFiles(ImmutableSet.of(new SingleEndSequenceFile(null))).build();
+        built.setId(id);
+        built.setAnalysis(new Analysis(null, ImmutableMap.copyOf(outputs), null, null));
+        AnalysisSubmission submission = mock(AnalysisSubmission.class,
+                withSettings().spiedInstance(built).defaultAnswer(CALLS_REAL_METHODS).stubOnly());
+        doReturn(new Date(CREATED_MILLIS + id * 1000)).when(submission).getCreatedDate();
+        return submission;
+    }
+
+    private static AnalysisOutputFile outputFile(String resource) throws Exception {
+        Path path = Paths.get(ClassLoader.getSystemResource(resource).toURI());
+        return new AnalysisOutputFile(path, null, null, null);
+    }
+
+    private static void pause(long millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * A metadata field which has been saved, and so has an id.
+     */
+    private static class SavedField extends MetadataTemplateField {
+        private final Long id;
+
+        SavedField(Long id, String label) {
+            super(label, "text");
+            this.id = id;
+        }
+
+        @Override
+        public Long getId() {
+            return id;
+        }
+    }
+
+    /**
+     * In-memory stand-ins for the IRIDA services, which wait for a fixed latency
+     * on every call as a database would. Stub-only mocks are used so that they do
+     * not record every call made during a run.
+     */
+    private class StandInServices {
+        private final ConcurrentHashMap<String, MetadataTemplateField> fields = new ConcurrentHashMap<>();
+        private final AtomicLong fieldIds = new AtomicLong();
+        private final ConcurrentHashMap<Long, Map<String, MetadataEntry>> metadata = new ConcurrentHashMap<>();
+        private final AtomicInteger writes = new AtomicInteger();
+        private final Set<Long> writers = ConcurrentHashMap.newKeySet();
+        private final ConcurrentHashMap<Long, List<long[]>> writeWindows = new ConcurrentHashMap<>();
+        private final ThreadLocal<Long> readNanos = new ThreadLocal<>();
+
+        private final SampleService sampleService = mock(SampleService.class, withSettings().stubOnly());
+        private final MetadataTemplateService metadataTemplateService = mock(MetadataTemplateService.class,
+                withSettings().stubOnly());
+        private final IridaWorkflowsService iridaWorkflowsService = mock(IridaWorkflowsService.class,
+                withSettings().stubOnly());
+
+        @SuppressWarnings("unchecked")
+        StandInServices(long workflowLatencyMillis, long templateLatencyMillis, long sampleLatencyMillis)
+                throws Exception {
+            IridaWorkflow iridaWorkflow = mock(IridaWorkflow.class, withSettings().stubOnly());
+            IridaWorkflowDescription iridaWorkflowDescription = mock(IridaWorkflowDescription.class,
+                    withSettings().stubOnly());
+            when(iridaWorkflow.getWorkflowDescription()).thenReturn(iridaWorkflowDescription);
+            when(iridaWorkflowDescription.getName()).thenReturn(WORKFLOW_NAME);
+            when(iridaWorkflowDescription.getVersion()).thenReturn("0.2.0");
+            when(iridaWorkflowsService.getIridaWorkflow(workflowId)).thenAnswer(invocation -> {
+                pause(workflowLatencyMillis);
+                return iridaWorkflow;
+            });
+
+            when(metadataTemplateService.convertMetadataStringsToSet(any(Map.class))).thenAnswer(invocation -> {
+                pause(templateLatencyMillis);
+                Map<String, MetadataEntry> metadataEntries = (Map<String, MetadataEntry>) invocation
+                        .getArguments()[0];
+                Set<MetadataEntry> metadataSet = new HashSet<>();
+                for (Map.Entry<String, MetadataEntry> e : metadataEntries.entrySet()) {
+                    MetadataEntry entry = e.getValue();
+                    entry.setField(fields.computeIfAbsent(e.getKey(),
+                            label -> new SavedField(fieldIds.incrementAndGet(), label)));
+                    metadataSet.add(entry);
+                }
+                return metadataSet;
+            });
+
+            when(sampleService.getMetadataForSample(any(Sample.class))).thenAnswer(invocation -> {
+                pause(sampleLatencyMillis);
+                readNanos.set(System.nanoTime());
+                Map<String, MetadataEntry> sampleMetadata = metadata
+                        .get(((Sample) invocation.getArguments()[0]).getId());
+                if (sampleMetadata == null) {
+                    return Collections.emptySet();
+                }
+                synchronized (sampleMetadata) {
+                    return new HashSet<>(sampleMetadata.values());
+                }
+            });
+
+            when(sampleService.mergeSampleMetadata(any(Sample.class), any(Set.class))).thenAnswer(invocation -> {
+                Sample sample = (Sample) invocation.getArguments()[0];
+                pause(sampleLatencyMillis);
+                Map<String, MetadataEntry> sampleMetadata = metadata.computeIfAbsent(sample.getId(),
+                        id -> new HashMap<>());
+                synchronized (sampleMetadata) {
+                    for (MetadataEntry entry : (Set<MetadataEntry>) invocation.getArguments()[1]) {
+                        sampleMetadata.put(entry.getField().getLabel(), entry);
+                        writers.add(((PipelineProvidedMetadataEntry) entry).getSubmission().getId());
+                    }
+                }
+                writes.incrementAndGet();
+                List<long[]> windows = writeWindows.computeIfAbsent(sample.getId(), id -> new ArrayList<>());
+                synchronized (windows) {
+                    windows.add(new long[] { readNanos.get(), System.nanoTime() });
+                }
+                return sample;
+            });
+        }
+
+        AnalysisSampleUpdater updater() throws Exception {
+            return new SpeciesAbundancePlugin.PluginInfo()
+                    .getUpdater(metadataTemplateService, sampleService, iridaWorkflowsService).get();
+        }
+
+        /**
+         * The metadata of a sample, as the value and type of each field.
+         */
+        Map<String, String> getMetadata(Long sampleId) {
+            Map<String, String> values = new TreeMap<>();
+            Map<String, MetadataEntry> sampleMetadata = metadata.getOrDefault(sampleId, Collections.emptyMap());
+            synchronized (sampleMetadata) {
+                for (Map.Entry<String, MetadataEntry> e : sampleMetadata.entrySet()) {
+                    values.put(e.getKey(), e.getValue().getValue() + " (" + e.getValue().getType() + ")");
+                }
+            }
+            return values;
+        }
+
+        /**
+         * Whether an update of a sample read its metadata before another update
+         * of the sample wrote, and wrote after it.
+         */
+        boolean hasOverlappingWrites(Long sampleId) {
+            List<long[]> windows = new ArrayList<>(writeWindows.getOrDefault(sampleId, Collections.emptyList()));
+            windows.sort(Comparator.comparingLong(window -> window[0]));
+            long lastWrite = Long.MIN_VALUE;
+            for (long[] window : windows) {
+                if (window[0] < lastWrite) {
+                    return true;
+                }
+                lastWrite = Math.max(lastWrite, window[1]);
+            }
+            return false;
+        }
+
+        /**
+         * The id of the analysis submission which provided each field of a sample.
+         */
+        Map<String, Long> getProviders(Long sampleId) {
+            Map<String, Long> providers = new HashMap<>();
+            Map<String, MetadataEntry> sampleMetadata = metadata.getOrDefault(sampleId, Collections.emptyMap());
+            synchronized (sampleMetadata) {
+                for (Map.Entry<String, MetadataEntry> e : sampleMetadata.entrySet()) {
+                    providers.put(e.getKey(), ((PipelineProvidedMetadataEntry) e.getValue()).getSubmission().getId());
+                }
+            }
+            return providers;
+        }
+    }
+}
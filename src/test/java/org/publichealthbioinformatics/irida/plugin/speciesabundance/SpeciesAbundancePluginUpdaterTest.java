@@ -1,24 +1,34 @@
 package org.publichealthbioinformatics.irida.plugin.speciesabundance;
 
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.zip.GZIPOutputStream;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 
 import org.junit.*;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
-import org.hamcrest.collection.IsMapContaining;
-import static org.hamcrest.MatcherAssert.*;
+import org.mockito.InOrder;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.*;
 
 import ca.corefacility.bioinformatics.irida.exceptions.IridaWorkflowException;
 import ca.corefacility.bioinformatics.irida.model.sample.MetadataTemplateField;
 import ca.corefacility.bioinformatics.irida.model.sample.metadata.MetadataEntry;
+import ca.corefacility.bioinformatics.irida.model.sample.metadata.PipelineProvidedMetadataEntry;
 import ca.corefacility.bioinformatics.irida.model.sequenceFile.SingleEndSequenceFile;
 import ca.corefacility.bioinformatics.irida.model.workflow.description.*;
 import ca.corefacility.bioinformatics.irida.model.sample.Sample;
@@ -45,6 +55,9 @@ public class SpeciesAbundancePluginUpdaterTest {
 
     private UUID uuid = UUID.randomUUID();
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Before
     public void setUp() throws IridaWorkflowException {
         sampleService = mock(SampleService.class);
@@ -133,26 +146,775 @@ public class SpeciesAbundancePluginUpdaterTest {
     }
 
     @Test
-    public void testParseSpeciesAbundanceFile() throws Throwable {
+    public void testUpdateWritesProfileSidecar() throws Throwable {
+        Path sidecarDirectory = temporaryFolder.newFolder("profiles").toPath();
+        updater.setProfileSidecarDirectory(sidecarDirectory);
+
+        Path speciesAbundanceFilePath = Paths.get(ClassLoader.getSystemResource("species_abundance.tsv").toURI());
+        AnalysisOutputFile speciesAbundanceFile = new AnalysisOutputFile(speciesAbundanceFilePath, null, null, null);
+        Analysis analysis = new Analysis(null, ImmutableMap.of("species_abundance", speciesAbundanceFile), null, null);
+        AnalysisSubmission submission = AnalysisSubmission.builder(uuid)
+                .inputFiles(ImmutableSet.of(new SingleEndSequenceFile(null))).build();
+        submission.setId(7L);
+        submission.setAnalysis(analysis);
+
+        Sample sample = new Sample();
+        sample.setId(3L);
+
+        when(metadataTemplateService.convertMetadataStringsToSet(any(Map.class))).thenReturn(new HashSet<>());
+
+        updater.update(Lists.newArrayList(sample), submission);
+
+        Path sidecarPath = sidecarDirectory.resolve("3").resolve("7" + ProfileSidecar.EXTENSION);
+        assertEquals(sidecarPath, ProfileSidecar.getSidecarPath(sidecarDirectory, 3L, 7L));
+        ProfileSidecar sidecar = ProfileSidecar.read(sidecarPath);
+        assertEquals(64, sidecar.size());
+        assertEquals("Escherichia coli", sidecar.getName(0));
+        assertEquals(0.98546, sidecar.getFraction(0), 0.0);
+    }
+
+    @Test
+    public void testFailedSidecarIsRecordedAsSidecarFailure() throws Throwable {
+        // the sidecar directory cannot be created under a file
+        Path sidecarDirectory = temporaryFolder.newFile("profiles").toPath();
+        updater.setProfileSidecarDirectory(sidecarDirectory);
+        UpdaterMetrics metrics = mock(UpdaterMetrics.class);
+        updater.setMetrics(metrics);
+
+        Path speciesAbundanceFilePath = Paths.get(ClassLoader.getSystemResource("species_abundance.tsv").toURI());
+        AnalysisOutputFile speciesAbundanceFile = new AnalysisOutputFile(speciesAbundanceFilePath, null, null, null);
+        Analysis analysis = new Analysis(null, ImmutableMap.of("species_abundance", speciesAbundanceFile), null, null);
+        AnalysisSubmission submission = AnalysisSubmission.builder(uuid)
+                .inputFiles(ImmutableSet.of(new SingleEndSequenceFile(null))).build();
+        submission.setId(7L);
+        submission.setAnalysis(analysis);
+
+        Sample sample = new Sample();
+        sample.setId(3L);
+
+        when(metadataTemplateService.convertMetadataStringsToSet(any(Map.class))).thenReturn(new HashSet<>());
+
+        updater.update(Lists.newArrayList(sample), submission);
+
+        verify(metrics).recordFailure(eq(UpdaterPhase.SIDECAR), any(IOException.class));
+        verify(metrics, never()).recordFailure(eq(UpdaterPhase.PARSE), any(Throwable.class));
+    }
+
+    @Test
+    public void testUpdateWithLineage() throws Throwable {
+        Path taxonomyDirectory = Paths.get(ClassLoader.getSystemResource("taxonomy/nodes.dmp").toURI()).getParent();
+        updater.setLineageResolver(TaxonomyLineageResolver.load(taxonomyDirectory,
+                temporaryFolder.getRoot().toPath().resolve("taxonomy.bin")));
+
+        Path speciesAbundanceFilePath = Paths.get(ClassLoader.getSystemResource("species_abundance.tsv").toURI());
+        AnalysisOutputFile speciesAbundanceFile = new AnalysisOutputFile(speciesAbundanceFilePath, null, null, null);
+        Analysis analysis = new Analysis(null, ImmutableMap.of("species_abundance", speciesAbundanceFile), null, null);
+        AnalysisSubmission submission = AnalysisSubmission.builder(uuid)
+                .inputFiles(ImmutableSet.of(new SingleEndSequenceFile(null))).build();
+        submission.setAnalysis(analysis);
+
+        Sample sample = new Sample();
+        sample.setId(0L);
+
+        when(metadataTemplateService.convertMetadataStringsToSet(any(Map.class))).thenReturn(new HashSet<>());
+
+        updater.update(Lists.newArrayList(sample), submission);
+
+        ArgumentCaptor<Map> mapCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(metadataTemplateService).convertMetadataStringsToSet(mapCaptor.capture());
+        Map<String, MetadataEntry> metadata = mapCaptor.getValue();
+
+        assertEquals("Escherichia", metadata.get("species-abundance/genus").getValue());
+        assertEquals("Enterobacteriaceae", metadata.get("species-abundance/family").getValue());
+        assertEquals("Enterobacter", metadata.get("species-abundance/genus_2").getValue());
+        assertEquals("Shigella", metadata.get("species-abundance/genus_3").getValue());
+        assertEquals("Salmonella", metadata.get("species-abundance/genus_4").getValue());
+        assertEquals("Escherichia", metadata.get("species-abundance/genus_5").getValue());
+        assertEquals(16 + 10, metadata.size());
+    }
+
+    @Test
+    public void testUpdateWithLineageMissingName() throws Throwable {
+        Path taxonomyDirectory = Paths.get(ClassLoader.getSystemResource("taxonomy/nodes.dmp").toURI()).getParent();
+        Path copyDirectory = temporaryFolder.newFolder("taxonomy").toPath();
+        Files.copy(taxonomyDirectory.resolve("nodes.dmp"), copyDirectory.resolve("nodes.dmp"));
+        // Escherichia is in the tree but has no scientific name
+        List<String> names = new ArrayList<>();
+        for (String line : Files.readAllLines(taxonomyDirectory.resolve("names.dmp"))) {
+            if (!line.startsWith("561\t")) {
+                names.add(line);
+            }
+        }
+        Files.write(copyDirectory.resolve("names.dmp"), names);
+        updater.setLineageResolver(TaxonomyLineageResolver.load(copyDirectory,
+                temporaryFolder.getRoot().toPath().resolve("taxonomy.bin")));
+
+        Path speciesAbundanceFilePath = Paths.get(ClassLoader.getSystemResource("species_abundance.tsv").toURI());
+        AnalysisOutputFile speciesAbundanceFile = new AnalysisOutputFile(speciesAbundanceFilePath, null, null, null);
+        Analysis analysis = new Analysis(null, ImmutableMap.of("species_abundance", speciesAbundanceFile), null, null);
+        AnalysisSubmission submission = AnalysisSubmission.builder(uuid)
+                .inputFiles(ImmutableSet.of(new SingleEndSequenceFile(null))).build();
+        submission.setAnalysis(analysis);
+
+        Sample sample = new Sample();
+        sample.setId(0L);
+
+        when(metadataTemplateService.convertMetadataStringsToSet(any(Map.class))).thenReturn(new HashSet<>());
+
+        updater.update(Lists.newArrayList(sample), submission);
+
+        ArgumentCaptor<Map> mapCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(metadataTemplateService).convertMetadataStringsToSet(mapCaptor.capture());
+        Map<String, MetadataEntry> metadata = mapCaptor.getValue();
+
+        assertFalse(metadata.containsKey("species-abundance/genus"));
+        assertFalse(metadata.containsKey("species-abundance/genus_5"));
+        assertEquals("Enterobacteriaceae", metadata.get("species-abundance/family").getValue());
+        assertEquals("Enterobacter", metadata.get("species-abundance/genus_2").getValue());
+        for (MetadataEntry entry : metadata.values()) {
+            assertNotNull(entry.getValue());
+        }
+        assertEquals(16 + 8, metadata.size());
+    }
+
+    @Test
+    public void testUpdateWithKraken2Report() throws Throwable {
+        ImmutableMap<String, String> expectedResults = ImmutableMap.<String, String>builder()
+                .put("species-abundance/taxon_name", "Escherichia coli")
+                .put("species-abundance/unclassified_proportion", "0.10000")
+                .put("species-abundance/top_genus", "Escherichia")
+                .put("species-abundance/top_genus_proportion", "0.87324")
+                .put("species-abundance/top_family", "Enterobacteriaceae")
+                .put("species-abundance/top_family_proportion", "0.89725")
+                .put("species-abundance/kraken2_classified_proportion", "0.90000")
+                .put("species-abundance/bracken_species_proportion", "0.91130")
+                .put("species-abundance/bracken_reassigned_proportion", "0.60564")
+                .build();
+
+        Path speciesAbundanceFilePath = Paths.get(ClassLoader.getSystemResource("species_abundance.tsv").toURI());
+        Path kraken2ReportFilePath = Paths.get(ClassLoader.getSystemResource("kraken2_report.tsv").toURI());
+
+        AnalysisOutputFile speciesAbundanceFile = new AnalysisOutputFile(speciesAbundanceFilePath, null, null, null);
+        AnalysisOutputFile kraken2ReportFile = new AnalysisOutputFile(kraken2ReportFilePath, null, null, null);
+        Analysis analysis = new Analysis(null, ImmutableMap.of("species_abundance", speciesAbundanceFile,
+                "kraken2_report", kraken2ReportFile), null, null);
+        AnalysisSubmission submission = AnalysisSubmission.builder(uuid)
+                .inputFiles(ImmutableSet.of(new SingleEndSequenceFile(null))).build();
+
+        submission.setAnalysis(analysis);
+
+        Sample sample = new Sample();
+        sample.setId(0L);
+
+        updater.update(Lists.newArrayList(sample), submission);
+
+        ArgumentCaptor<Map> mapCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(metadataTemplateService).convertMetadataStringsToSet(mapCaptor.capture());
+        Map<String, MetadataEntry> metadata = mapCaptor.getValue();
+
+        for (Map.Entry<String, String> e : expectedResults.entrySet()) {
+            assertEquals("metadata values should match", e.getValue(), metadata.get(e.getKey()).getValue());
+        }
+        assertEquals("float", metadata.get("species-abundance/top_genus_proportion").getType());
+    }
+
+    @Test
+    public void testUpdateWithInvalidKraken2Report() throws Throwable {
+        Path speciesAbundanceFilePath = Paths.get(ClassLoader.getSystemResource("species_abundance.tsv").toURI());
+        // the kraken2 report is optional, so its failure is recorded but the species are still written
+        Path kraken2ReportFilePath = Paths.get(ClassLoader.getSystemResource("species_abundance_short.tsv").toURI());
+
+        Analysis analysis = new Analysis(null, ImmutableMap.of(
+                "species_abundance", new AnalysisOutputFile(speciesAbundanceFilePath, null, null, null),
+                "kraken2_report", new AnalysisOutputFile(kraken2ReportFilePath, null, null, null)), null, null);
+        AnalysisSubmission submission = AnalysisSubmission.builder(uuid)
+                .inputFiles(ImmutableSet.of(new SingleEndSequenceFile(null))).build();
+        submission.setAnalysis(analysis);
+
+        Sample sample = new Sample();
+        sample.setId(0L);
+        resolveFields();
+        UpdaterMetrics metrics = mock(UpdaterMetrics.class);
+        updater.setMetrics(metrics);
+
+        updater.update(Lists.newArrayList(sample), submission);
+
+        verify(metrics).recordFailure(eq(UpdaterPhase.PARSE), any(IOException.class));
+        Map<String, MetadataEntry> metadata = writtenEntries(sample);
+        assertEquals("should write only the species", 16, metadata.size());
+        assertEquals("Escherichia coli", metadata.get("species-abundance/taxon_name").getValue());
+        assertFalse(metadata.containsKey("species-abundance/unclassified_proportion"));
+    }
+
+    @Test
+    public void testUpdateClearsKraken2EntriesNotProduced() throws Throwable {
+        Path speciesAbundanceFilePath = Paths.get(ClassLoader.getSystemResource("species_abundance.tsv").toURI());
+
+        // this analysis has no kraken2 report
+        Analysis analysis = new Analysis(null, ImmutableMap.of("species_abundance",
+                new AnalysisOutputFile(speciesAbundanceFilePath, null, null, null)), null, null);
+        AnalysisSubmission submission = AnalysisSubmission.builder(uuid)
+                .inputFiles(ImmutableSet.of(new SingleEndSequenceFile(null))).build();
+        submission.setId(2L);
+        submission.setAnalysis(analysis);
+
+        Sample sample = new Sample();
+        sample.setId(0L);
+
+        // but an older one did
+        AnalysisSubmission older = mock(AnalysisSubmission.class);
+        when(older.getCreatedDate()).thenReturn(new Date(submission.getCreatedDate().getTime() - 1000));
+        when(older.getId()).thenReturn(1L);
+        Set<MetadataEntry> existing = new HashSet<>();
+        MetadataEntry topGenus = new PipelineProvidedMetadataEntry("Escherichia", "text", older);
+        topGenus.setField(new MetadataTemplateField("species-abundance/top_genus", "text"));
+        existing.add(topGenus);
+        MetadataEntry brackenSpecies = new PipelineProvidedMetadataEntry("0.91130", "float", older);
+        brackenSpecies.setField(new MetadataTemplateField("species-abundance/bracken_species_proportion", "text"));
+        existing.add(brackenSpecies);
+        // a field of another workflow is left as it is
+        MetadataEntry other = new PipelineProvidedMetadataEntry("ST131", "text", older);
+        other.setField(new MetadataTemplateField("mlst/sequence_type", "text"));
+        existing.add(other);
+        when(sampleService.getMetadataForSample(sample)).thenReturn(existing);
+        resolveFields();
+
+        updater.update(Lists.newArrayList(sample), submission);
+
+        Map<String, MetadataEntry> metadata = writtenEntries(sample);
+        assertEquals("should write the species and clear both kraken2 fields", 18, metadata.size());
+        assertEquals("", metadata.get("species-abundance/top_genus").getValue());
+        assertEquals("", metadata.get("species-abundance/bracken_species_proportion").getValue());
+        assertEquals("float", metadata.get("species-abundance/bracken_species_proportion").getType());
+        assertFalse(metadata.containsKey("mlst/sequence_type"));
+    }
+
+    @Test
+    public void testUpdateCachesWorkflow() throws Throwable {
+        Path speciesAbundanceFilePath = Paths.get(ClassLoader.getSystemResource("species_abundance.tsv").toURI());
+
+        AnalysisOutputFile speciesAbundanceFile = new AnalysisOutputFile(speciesAbundanceFilePath, null, null, null);
+        Analysis analysis = new Analysis(null, ImmutableMap.of("species_abundance", speciesAbundanceFile), null, null);
+        AnalysisSubmission submission = AnalysisSubmission.builder(uuid)
+                .inputFiles(ImmutableSet.of(new SingleEndSequenceFile(null))).build();
+        submission.setAnalysis(analysis);
+
+        Sample sample = new Sample();
+        sample.setId(0L);
+
+        resolveFields();
+
+        updater.update(Lists.newArrayList(sample), submission);
+        updater.update(Lists.newArrayList(sample), submission);
+
+        verify(iridaWorkflowsService, times(1)).getIridaWorkflow(uuid);
+        // fields are entities of the update's own transaction, so they are resolved every time
+        verify(metadataTemplateService, times(2)).convertMetadataStringsToSet(any(Map.class));
+
+        ArgumentCaptor<Set> setCaptor = ArgumentCaptor.forClass(Set.class);
+        verify(sampleService, times(2)).mergeSampleMetadata(eq(sample), setCaptor.capture());
+        Set<MetadataEntry> second = setCaptor.getAllValues().get(1);
+        assertEquals(16, second.size());
+        for (MetadataEntry entry : second) {
+            assertNotNull("field should have been resolved by the service", entry.getField());
+        }
+    }
+
+    @Test
+    public void testUpdateRecordsMetrics() throws Throwable {
+        Path speciesAbundanceFilePath = Paths.get(ClassLoader.getSystemResource("species_abundance.tsv").toURI());
+
+        AnalysisOutputFile speciesAbundanceFile = new AnalysisOutputFile(speciesAbundanceFilePath, null, null, null);
+        Analysis analysis = new Analysis(null, ImmutableMap.of("species_abundance", speciesAbundanceFile), null, null);
+        AnalysisSubmission submission = AnalysisSubmission.builder(uuid)
+                .inputFiles(ImmutableSet.of(new SingleEndSequenceFile(null))).build();
+        submission.setAnalysis(analysis);
+
+        Sample sample = new Sample();
+        sample.setId(0L);
+
+        resolveFields();
+        UpdaterMetrics metrics = mock(UpdaterMetrics.class);
+        updater.setMetrics(metrics);
+        updater.update(Lists.newArrayList(sample), submission);
+
+        verify(metrics).recordPhase(eq(UpdaterPhase.WORKFLOW_LOOKUP), anyLong());
+        verify(metrics).recordPhase(eq(UpdaterPhase.PARSE), anyLong());
+        verify(metrics).recordPhase(eq(UpdaterPhase.FIELD_RESOLUTION), anyLong());
+        verify(metrics).recordPhase(eq(UpdaterPhase.METADATA_WRITE), anyLong());
+        verify(metrics).recordParse("species_abundance", 64, speciesAbundanceFilePath.toFile().length());
+        verify(metrics, never()).recordFailure(any(UpdaterPhase.class), any(Throwable.class));
+
+        RuntimeException failure = new RuntimeException("database is down");
+        when(sampleService.mergeSampleMetadata(any(Sample.class), any(Set.class))).thenThrow(failure);
+        try {
+            updater.update(Lists.newArrayList(sample), submission);
+            fail("should have thrown the failure from the sample service");
+        } catch (RuntimeException e) {
+            assertEquals(failure, e);
+        }
+        verify(metrics).recordFailure(UpdaterPhase.METADATA_WRITE, failure);
+    }
+
+    @Test
+    public void testUpdateWritesOnlyChangedEntries() throws Throwable {
         Path speciesAbundanceFilePath = Paths.get(ClassLoader.getSystemResource("species_abundance.tsv").toURI());
-        List<Map<String, String>> speciesAbundances = updater.parseSpeciesAbundanceFile(speciesAbundanceFilePath);
-        for (Map<String, String> species : speciesAbundances) {
-            assertThat(species, IsMapContaining.hasKey("name"));
-            assertThat(species, IsMapContaining.hasKey("taxonomy_lvl"));
-            assertThat(species, IsMapContaining.hasKey("taxonomy_id"));
-            assertThat(species, IsMapContaining.hasKey("fraction_total_reads"));
+
+        AnalysisOutputFile speciesAbundanceFile = new AnalysisOutputFile(speciesAbundanceFilePath, null, null, null);
+        Analysis analysis = new Analysis(null, ImmutableMap.of("species_abundance", speciesAbundanceFile), null, null);
+        AnalysisSubmission submission = AnalysisSubmission.builder(uuid)
+                .inputFiles(ImmutableSet.of(new SingleEndSequenceFile(null))).build();
+        submission.setAnalysis(analysis);
+
+        Sample sample = new Sample();
+        sample.setId(0L);
+
+        // a previous analysis wrote the same results, except for the fifth species
+        Set<MetadataEntry> existing = new HashSet<>();
+        existing.add(new PipelineProvidedMetadataEntry("S", "text", submission));
+        existing.iterator().next().setField(new MetadataTemplateField("species-abundance/taxonomy_level", "text"));
+        MetadataEntry name = new PipelineProvidedMetadataEntry("Escherichia coli", "text", submission);
+        name.setField(new MetadataTemplateField("species-abundance/taxon_name", "text"));
+        existing.add(name);
+        MetadataEntry proportion5 = new PipelineProvidedMetadataEntry("0.00099", "float", submission);
+        proportion5.setField(new MetadataTemplateField("species-abundance/proportion_5", "text"));
+        existing.add(proportion5);
+        // a value entered by a user is always replaced
+        MetadataEntry userEntered = new MetadataEntry("562", "text");
+        userEntered.setField(new MetadataTemplateField("species-abundance/taxonomy_id", "text"));
+        existing.add(userEntered);
+        when(sampleService.getMetadataForSample(sample)).thenReturn(existing);
+        resolveFields();
+
+        updater.update(Lists.newArrayList(sample), submission);
+
+        InOrder inOrder = inOrder(metadataTemplateService, sampleService);
+        inOrder.verify(metadataTemplateService).convertMetadataStringsToSet(any(Map.class));
+        inOrder.verify(sampleService).getMetadataForSample(sample);
+        inOrder.verify(sampleService).mergeSampleMetadata(eq(sample), any(Set.class));
+        Map<String, MetadataEntry> metadata = writtenEntries(sample);
+        assertEquals("should only write the changed entries", 14, metadata.size());
+        assertFalse(metadata.containsKey("species-abundance/taxonomy_level"));
+        assertFalse(metadata.containsKey("species-abundance/taxon_name"));
+        assertEquals("0.00083", metadata.get("species-abundance/proportion_5").getValue());
+        assertEquals("562", metadata.get("species-abundance/taxonomy_id").getValue());
+    }
+
+    @Test
+    public void testUpdateSkipsUnchangedSample() throws Throwable {
+        Path speciesAbundanceFilePath = Paths.get(ClassLoader.getSystemResource("species_abundance_short.tsv").toURI());
+
+        AnalysisOutputFile speciesAbundanceFile = new AnalysisOutputFile(speciesAbundanceFilePath, null, null, null);
+        Analysis analysis = new Analysis(null, ImmutableMap.of("species_abundance", speciesAbundanceFile), null, null);
+        AnalysisSubmission submission = AnalysisSubmission.builder(uuid)
+                .inputFiles(ImmutableSet.of(new SingleEndSequenceFile(null))).build();
+        submission.setAnalysis(analysis);
+
+        Sample sample = new Sample();
+        sample.setId(0L);
+
+        Map<String, String> previous = ImmutableMap.<String, String>builder()
+                .put("species-abundance/taxonomy_level", "S")
+                .put("species-abundance/taxon_name", "Escherichia coli")
+                .put("species-abundance/taxonomy_id", "562")
+                .put("species-abundance/proportion", "0.98546")
+                .put("species-abundance/taxon_name_2", "Enterobacter hormaechei")
+                .put("species-abundance/taxonomy_id_2", "158836")
+                .put("species-abundance/proportion_2", "0.00662")
+                .build();
+        Set<MetadataEntry> existing = new HashSet<>();
+        for (Map.Entry<String, String> e : previous.entrySet()) {
+            String type = e.getKey().contains("proportion") ? "float" : "text";
+            MetadataEntry entry = new PipelineProvidedMetadataEntry(e.getValue(), type, submission);
+            entry.setField(new MetadataTemplateField(e.getKey(), "text"));
+            existing.add(entry);
         }
+        when(sampleService.getMetadataForSample(sample)).thenReturn(existing);
+        resolveFields();
+
+        updater.update(Lists.newArrayList(sample), submission);
+
+        verify(sampleService, never()).mergeSampleMetadata(any(Sample.class), any(Set.class));
+    }
+
+    @Test
+    public void testUpdateTakesOverEqualEntriesOfOlderAnalysis() throws Throwable {
+        Path speciesAbundanceFilePath = Paths.get(ClassLoader.getSystemResource("species_abundance.tsv").toURI());
+
+        AnalysisOutputFile speciesAbundanceFile = new AnalysisOutputFile(speciesAbundanceFilePath, null, null, null);
+        Analysis analysis = new Analysis(null, ImmutableMap.of("species_abundance", speciesAbundanceFile), null, null);
+        AnalysisSubmission submission = AnalysisSubmission.builder(uuid)
+                .inputFiles(ImmutableSet.of(new SingleEndSequenceFile(null))).build();
+        submission.setId(2L);
+        submission.setAnalysis(analysis);
+
+        Sample sample = new Sample();
+        sample.setId(0L);
+
+        // an older analysis wrote the same name, so an analysis in between would replace it
+        AnalysisSubmission older = mock(AnalysisSubmission.class);
+        when(older.getCreatedDate()).thenReturn(new Date(submission.getCreatedDate().getTime() - 1000));
+        when(older.getId()).thenReturn(1L);
+        MetadataEntry name = new PipelineProvidedMetadataEntry("Escherichia coli", "text", older);
+        name.setField(new MetadataTemplateField("species-abundance/taxon_name", "text"));
+        when(sampleService.getMetadataForSample(sample)).thenReturn(Collections.singleton(name));
+        resolveFields();
+
+        updater.update(Lists.newArrayList(sample), submission);
+
+        Map<String, MetadataEntry> metadata = writtenEntries(sample);
+        assertEquals("should write every entry", 16, metadata.size());
+        assertEquals("Escherichia coli", metadata.get("species-abundance/taxon_name").getValue());
+    }
+
+    @Test
+    public void testUpdateKeepsEntriesOfNewerAnalysis() throws Throwable {
+        Path speciesAbundanceFilePath = Paths.get(ClassLoader.getSystemResource("species_abundance.tsv").toURI());
+
+        AnalysisOutputFile speciesAbundanceFile = new AnalysisOutputFile(speciesAbundanceFilePath, null, null, null);
+        Analysis analysis = new Analysis(null, ImmutableMap.of("species_abundance", speciesAbundanceFile), null, null);
+        AnalysisSubmission submission = AnalysisSubmission.builder(uuid)
+                .inputFiles(ImmutableSet.of(new SingleEndSequenceFile(null))).build();
+        submission.setId(1L);
+        submission.setAnalysis(analysis);
+
+        Sample sample = new Sample();
+        sample.setId(0L);
+
+        // an analysis submitted later has already written its results, which report a single species
+        AnalysisSubmission newer = mock(AnalysisSubmission.class);
+        when(newer.getCreatedDate()).thenReturn(new Date(submission.getCreatedDate().getTime() + 1000));
+        when(newer.getId()).thenReturn(2L);
+        Set<MetadataEntry> existing = new HashSet<>();
+        MetadataEntry name = new PipelineProvidedMetadataEntry("Salmonella enterica", "text", newer);
+        name.setField(new MetadataTemplateField("species-abundance/taxon_name", "text"));
+        existing.add(name);
+        // even the fields of an older analysis are left as they are, so no other species are mixed in
+        AnalysisSubmission older = mock(AnalysisSubmission.class);
+        when(older.getCreatedDate()).thenReturn(new Date(submission.getCreatedDate().getTime() - 1000));
+        MetadataEntry taxonomyId = new PipelineProvidedMetadataEntry("28901", "text", older);
+        taxonomyId.setField(new MetadataTemplateField("species-abundance/taxonomy_id", "text"));
+        existing.add(taxonomyId);
+        when(sampleService.getMetadataForSample(sample)).thenReturn(existing);
+        resolveFields();
+
+        updater.update(Lists.newArrayList(sample), submission);
+
+        verify(sampleService, never()).mergeSampleMetadata(any(Sample.class), any(Set.class));
+    }
+
+    @Test
+    public void testUpdateClearsSpeciesNoLongerReported() throws Throwable {
+        Path fivePath = Paths.get(ClassLoader.getSystemResource("species_abundance.tsv").toURI());
+        Path twoPath = Paths.get(ClassLoader.getSystemResource("species_abundance_short.tsv").toURI());
+
+        AnalysisSubmission first = AnalysisSubmission.builder(uuid)
+                .inputFiles(ImmutableSet.of(new SingleEndSequenceFile(null))).build();
+        first.setId(1L);
+        first.setAnalysis(new Analysis(null, ImmutableMap.of("species_abundance",
+                new AnalysisOutputFile(fivePath, null, null, null)), null, null));
+        AnalysisSubmission second = AnalysisSubmission.builder(uuid)
+                .inputFiles(ImmutableSet.of(new SingleEndSequenceFile(null))).build();
+        second.setId(2L);
+        second.setAnalysis(new Analysis(null, ImmutableMap.of("species_abundance",
+                new AnalysisOutputFile(twoPath, null, null, null)), null, null));
+
+        Sample sample = new Sample();
+        sample.setId(0L);
+        resolveFields();
+
+        updater.update(Lists.newArrayList(sample), first);
+        Map<String, MetadataEntry> firstEntries = writtenEntries(sample);
+        assertEquals(16, firstEntries.size());
+
+        // the second analysis of the sample reports only two species
+        reset(sampleService);
+        when(sampleService.getMetadataForSample(sample)).thenReturn(new HashSet<>(firstEntries.values()));
+        updater.update(Lists.newArrayList(sample), second);
+
+        Map<String, MetadataEntry> metadata = writtenEntries(sample);
+        assertEquals("should write both species and clear the other three", 16, metadata.size());
+        assertEquals("Escherichia coli", metadata.get("species-abundance/taxon_name").getValue());
+        assertEquals("Enterobacter hormaechei", metadata.get("species-abundance/taxon_name_2").getValue());
+        for (int rank = 3; rank <= 5; rank++) {
+            for (String field : new String[] { "taxon_name_", "taxonomy_id_", "proportion_" }) {
+                MetadataEntry cleared = metadata.get("species-abundance/" + field + rank);
+                assertEquals("should clear " + field + rank, "", cleared.getValue());
+                assertEquals(second, ((PipelineProvidedMetadataEntry) cleared).getSubmission());
+            }
+        }
+        assertEquals("float", metadata.get("species-abundance/proportion_5").getType());
+    }
+
+    @Test
+    public void testUpdateWithReportingThresholds() throws Throwable {
+        updater.setReportingThresholds(new ReportingThresholds(3, 0.002, 0));
+
+        Path speciesAbundanceFilePath = Paths.get(ClassLoader.getSystemResource("species_abundance.tsv").toURI());
+        AnalysisOutputFile speciesAbundanceFile = new AnalysisOutputFile(speciesAbundanceFilePath, null, null, null);
+        Analysis analysis = new Analysis(null, ImmutableMap.of("species_abundance", speciesAbundanceFile), null, null);
+        AnalysisSubmission submission = AnalysisSubmission.builder(uuid)
+                .inputFiles(ImmutableSet.of(new SingleEndSequenceFile(null))).build();
+        submission.setAnalysis(analysis);
+
+        Sample sample = new Sample();
+        sample.setId(0L);
+        updater.update(Lists.newArrayList(sample), submission);
+
+        ArgumentCaptor<Map> mapCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(metadataTemplateService).convertMetadataStringsToSet(mapCaptor.capture());
+        Map<String, MetadataEntry> metadata = mapCaptor.getValue();
+        assertEquals("should report the two species above the minimum fraction", 7, metadata.size());
+        assertEquals("Enterobacter hormaechei", metadata.get("species-abundance/taxon_name_2").getValue());
+        assertFalse(metadata.containsKey("species-abundance/taxon_name_3"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidReportingThresholds() {
+        new ReportingThresholds(ReportingThresholds.MAX_TOP_N + 1, 0.0, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUpdateMoreThanOneSample() throws Throwable {
+        AnalysisSubmission submission = AnalysisSubmission.builder(uuid)
+                .inputFiles(ImmutableSet.of(new SingleEndSequenceFile(null))).build();
+
+        updater.update(Lists.newArrayList(new Sample("sample1"), new Sample("sample2")), submission);
+    }
+
+    @Test
+    public void testAddSpeciesEntries() throws Throwable {
+        MetadataFieldPlan plan = new MetadataFieldPlan(WORKFLOW_NAME, ReportingThresholds.MAX_TOP_N);
+        List<SpeciesAbundance> speciesAbundances = Lists.newArrayList(
+                new SpeciesAbundance("Escherichia coli", 562, "S", 851328, 1699174, 2550502, "0.98546"),
+                new SpeciesAbundance("Salmonella enterica", 28901, "S", 1000, 100, 1100, "0.00042"));
+        AnalysisSubmission analysis = AnalysisSubmission.builder(uuid)
+                .inputFiles(ImmutableSet.of(new SingleEndSequenceFile(null))).build();
+
+        Map<String, MetadataEntry> metadataEntries = new HashMap<>();
+        SpeciesAbundancePluginUpdater.addSpeciesEntries(metadataEntries, plan, speciesAbundances, null, analysis);
+
+        assertEquals("should have added taxonomy_level once and 3 entries per species", 7, metadataEntries.size());
+        assertTrue("should never exceed the expected number of entries",
+                metadataEntries.size() <= plan.getMaxEntries(speciesAbundances.size(), false, false));
+        assertEquals("S", metadataEntries.get("species-abundance/taxonomy_level").getValue());
+        assertEquals("Salmonella enterica", metadataEntries.get("species-abundance/taxon_name_2").getValue());
+        assertEquals("28901", metadataEntries.get("species-abundance/taxonomy_id_2").getValue());
+        assertEquals("float", metadataEntries.get("species-abundance/proportion_2").getType());
+
+        metadataEntries.clear();
+        SpeciesAbundancePluginUpdater.addSpeciesEntries(metadataEntries, plan, Collections.emptyList(), null, analysis);
+        assertEquals("should add no entries without species", 0, metadataEntries.size());
+    }
+
+    @Test
+    public void testParseSpeciesAbundanceFile() throws Throwable {
+        Path speciesAbundanceFilePath = Paths.get(ClassLoader.getSystemResource("species_abundance.tsv").toURI());
+        List<SpeciesAbundance> speciesAbundances = updater.parseSpeciesAbundanceFile(speciesAbundanceFilePath);
+        assertEquals("should have parsed the top 5 species", 5, speciesAbundances.size());
+        SpeciesAbundance species = speciesAbundances.get(0);
+        assertEquals("Escherichia coli", species.getName());
+        assertEquals(562, species.getTaxonomyId());
+        assertEquals("S", species.getTaxonomyLevel());
+        assertEquals(851328, species.getKrakenAssignedReads());
+        assertEquals(1699174, species.getAddedReads());
+        assertEquals(2550502, species.getNewEstimatedReads());
+        assertEquals(0.98546, species.getFractionTotalReads(), 0.0);
+        assertEquals("0.98546", species.getFractionTotalReadsText());
+        assertEquals("Escherichia albertii", speciesAbundances.get(4).getName());
     }
 
     @Test
     public void testParseSpeciesAbundanceFileNoHeader() throws Throwable {
         Path speciesAbundanceFilePath = Paths.get(ClassLoader.getSystemResource("species_abundance_no_header.tsv").toURI());
-        List<Map<String, String>> speciesAbundances = updater.parseSpeciesAbundanceFile(speciesAbundanceFilePath);
-        for (Map<String, String> species : speciesAbundances) {
-            assertThat(species, IsMapContaining.hasKey("name"));
-            assertThat(species, IsMapContaining.hasKey("taxonomy_lvl"));
-            assertThat(species, IsMapContaining.hasKey("taxonomy_id"));
-            assertThat(species, IsMapContaining.hasKey("fraction_total_reads"));
+        List<SpeciesAbundance> speciesAbundances = updater.parseSpeciesAbundanceFile(speciesAbundanceFilePath);
+        assertEquals("should have parsed the top 5 species", 5, speciesAbundances.size());
+        assertEquals("Escherichia coli", speciesAbundances.get(0).getName());
+        assertEquals("Escherichia albertii", speciesAbundances.get(4).getName());
+    }
+
+    @Test
+    public void testParseSpeciesAbundanceFileShort() throws Throwable {
+        Path speciesAbundanceFilePath = Paths.get(ClassLoader.getSystemResource("species_abundance_short.tsv").toURI());
+        List<SpeciesAbundance> speciesAbundances = updater.parseSpeciesAbundanceFile(speciesAbundanceFilePath);
+        assertEquals("should have parsed every species", 2, speciesAbundances.size());
+        assertEquals("Escherichia coli", speciesAbundances.get(0).getName());
+        assertEquals("Enterobacter hormaechei", speciesAbundances.get(1).getName());
+    }
+
+    @Test
+    public void testParseSpeciesAbundanceFileUnsorted() throws Throwable {
+        Path speciesAbundanceFilePath = Paths.get(ClassLoader.getSystemResource("species_abundance_unsorted.tsv").toURI());
+        List<SpeciesAbundance> speciesAbundances = updater.parseSpeciesAbundanceFile(speciesAbundanceFilePath);
+        List<String> names = new ArrayList<>();
+        for (SpeciesAbundance species : speciesAbundances) {
+            names.add(species.getName());
+        }
+        assertEquals(Lists.newArrayList("Escherichia coli", "Enterobacter hormaechei", "Shigella dysenteriae",
+                "Salmonella enterica", "Escherichia albertii"), names);
+    }
+
+    @Test
+    public void testParseSpeciesAbundanceFileThresholds() throws Throwable {
+        Path speciesAbundanceFilePath = Paths.get(ClassLoader.getSystemResource("species_abundance.tsv").toURI());
+        List<SpeciesAbundance> speciesAbundances = updater.parseSpeciesAbundanceFile(speciesAbundanceFilePath, null,
+                new ReportingThresholds(20, 0.001, 0));
+        assertEquals("should only report species above the minimum fraction", 4, speciesAbundances.size());
+        assertEquals("Salmonella enterica", speciesAbundances.get(3).getName());
+
+        speciesAbundances = updater.parseSpeciesAbundanceFile(speciesAbundanceFilePath, null,
+                new ReportingThresholds(20, 0.0, 5000));
+        assertEquals("should only report species above the minimum reads", 3, speciesAbundances.size());
+    }
+
+    @Test
+    public void testParseSortedSpeciesAbundanceFileStopsEarly() throws Throwable {
+        Path speciesAbundanceFilePath = Paths.get(ClassLoader.getSystemResource("species_abundance.tsv").toURI());
+
+        SpeciesAbundanceParser parser = new SpeciesAbundanceParser(1);
+        parser.setAssumeSorted(true);
+        List<SpeciesAbundance> speciesAbundances = parser.parse(speciesAbundanceFilePath);
+        assertEquals("Escherichia coli", speciesAbundances.get(0).getName());
+        assertEquals("should stop once the top species has been read", 1, parser.getRowsScanned());
+
+        parser = new SpeciesAbundanceParser(20);
+        parser.setMinimums(0.001, 0);
+        parser.setAssumeSorted(true);
+        assertEquals(4, parser.parse(speciesAbundanceFilePath).size());
+        assertEquals("should stop at the first species below the minimum", 4, parser.getRowsScanned());
+
+        // the sixth row ends the scan for the top five, but is not consumed
+        parser = new SpeciesAbundanceParser(5);
+        parser.setAssumeSorted(true);
+        assertEquals(5, parser.parse(speciesAbundanceFilePath).size());
+        assertEquals("should only count the rows consumed", 5, parser.getRowsScanned());
+        assertFalse(parser.isComplete());
+
+        parser = new SpeciesAbundanceParser(20);
+        parser.setMinimums(0.0, 5000);
+        parser.setAssumeSorted(true);
+        assertEquals(3, parser.parse(speciesAbundanceFilePath).size());
+        assertEquals("should not count the row below the minimum reads", 3, parser.getRowsScanned());
+
+        // a profile needs every row
+        AbundanceProfile profile = new AbundanceProfile();
+        parser = new SpeciesAbundanceParser(1);
+        parser.setAssumeSorted(true);
+        parser.setProfile(profile);
+        parser.parse(speciesAbundanceFilePath);
+        assertEquals(64, profile.size());
+    }
+
+    @Test
+    public void testParseUnsortedSpeciesAbundanceFileAssumingSorted() throws Throwable {
+        Path speciesAbundanceFilePath = Paths.get(ClassLoader.getSystemResource("species_abundance_unsorted.tsv").toURI());
+        SpeciesAbundanceParser parser = new SpeciesAbundanceParser(5);
+        parser.setAssumeSorted(true);
+        List<SpeciesAbundance> speciesAbundances = parser.parse(speciesAbundanceFilePath);
+
+        // rows out of order before the top five are found, so the whole file is read
+        assertEquals(12, parser.getRowsScanned());
+        List<String> names = new ArrayList<>();
+        for (SpeciesAbundance species : speciesAbundances) {
+            names.add(species.getName());
+        }
+        assertEquals(Lists.newArrayList("Escherichia coli", "Enterobacter hormaechei", "Shigella dysenteriae",
+                "Salmonella enterica", "Escherichia albertii"), names);
+    }
+
+    @Test
+    public void testParseSpeciesAbundanceFileGzip() throws Throwable {
+        Path speciesAbundanceFilePath = Paths.get(ClassLoader.getSystemResource("species_abundance.tsv").toURI());
+        byte[] contents = Files.readAllBytes(speciesAbundanceFilePath);
+        Path compressedFilePath = temporaryFolder.newFile("species_abundance.tsv.gz").toPath();
+        // write two gzip members, as bgzip does
+        try (OutputStream output = Files.newOutputStream(compressedFilePath)) {
+            int split = contents.length / 2;
+            try (GZIPOutputStream gzip = new GZIPOutputStream(new NonClosingOutputStream(output))) {
+                gzip.write(contents, 0, split);
+            }
+            try (GZIPOutputStream gzip = new GZIPOutputStream(new NonClosingOutputStream(output))) {
+                gzip.write(contents, split, contents.length - split);
+            }
+        }
+
+        List<SpeciesAbundance> expected = updater.parseSpeciesAbundanceFile(speciesAbundanceFilePath);
+        List<SpeciesAbundance> speciesAbundances = updater.parseSpeciesAbundanceFile(compressedFilePath);
+        assertEquals(expected.size(), speciesAbundances.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).toString(), speciesAbundances.get(i).toString());
+        }
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void testParseSpeciesAbundanceFileZstd() throws Throwable {
+        Path compressedFilePath = temporaryFolder.newFile("species_abundance.tsv.zst").toPath();
+        Files.write(compressedFilePath, new byte[] { 0x28, (byte) 0xb5, 0x2f, (byte) 0xfd, 0, 0, 0, 0 });
+        updater.parseSpeciesAbundanceFile(compressedFilePath);
+    }
+
+    @Test
+    public void testParseSpeciesAbundanceFileNumbersOutOfRange() throws Throwable {
+        String header = "name\ttaxonomy_id\ttaxonomy_lvl\tkraken_assigned_reads\tadded_reads\tnew_est_reads\tfraction_total_reads\n";
+        String[] rows = {
+                // a taxonomy id which does not fit in an int
+                "Escherichia coli\t4294967858\tS\t851328\t1699174\t2550502\t0.98546\n",
+                // a read count which does not fit in a long
+                "Escherichia coli\t562\tS\t851328\t1699174\t92233720368547758070\t0.98546\n" };
+        for (String row : rows) {
+            Path speciesAbundanceFilePath = temporaryFolder.newFile().toPath();
+            Files.write(speciesAbundanceFilePath, (header + row).getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            try {
+                updater.parseSpeciesAbundanceFile(speciesAbundanceFilePath);
+                fail("should not parse " + row.trim());
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("out of range"));
+            }
+        }
+    }
+
+    /**
+     * Resolves each label to a saved field, like the MetadataTemplateService
+     * would.
+     */
+    @SuppressWarnings("unchecked")
+    private void resolveFields() {
+        when(metadataTemplateService.convertMetadataStringsToSet(any(Map.class))).thenAnswer(invocation -> {
+            Map<String, MetadataEntry> entries = (Map<String, MetadataEntry>) invocation.getArguments()[0];
+            Set<MetadataEntry> resolved = new HashSet<>();
+            long id = 1;
+            for (Map.Entry<String, MetadataEntry> e : entries.entrySet()) {
+                MetadataTemplateField field = mock(MetadataTemplateField.class);
+                when(field.getId()).thenReturn(id++);
+                when(field.getLabel()).thenReturn(e.getKey());
+                e.getValue().setField(field);
+                resolved.add(e.getValue());
+            }
+            return resolved;
+        });
+    }
+
+    /**
+     * Gets the entries written to a sample, by the label of their field.
+     */
+    private Map<String, MetadataEntry> writtenEntries(Sample sample) {
+        ArgumentCaptor<Set> setCaptor = ArgumentCaptor.forClass(Set.class);
+        verify(sampleService).mergeSampleMetadata(eq(sample), setCaptor.capture());
+        Map<String, MetadataEntry> written = new HashMap<>();
+        for (MetadataEntry entry : (Set<MetadataEntry>) setCaptor.getValue()) {
+            written.put(entry.getField().getLabel(), entry);
+        }
+        return written;
+    }
+
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream output) {
+            super(output);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
         }
     }
-}
\ No newline at end of file
+}
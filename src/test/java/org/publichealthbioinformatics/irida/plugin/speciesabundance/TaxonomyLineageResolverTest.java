@@ -0,0 +1,141 @@
+package org.publichealthbioinformatics.irida.plugin.speciesabundance;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.Stream;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TaxonomyLineageResolverTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path taxonomyDirectory;
+    private Path cacheFile;
+    private TaxonomyLineageResolver resolver;
+
+    @Before
+    public void setUp() throws Throwable {
+        taxonomyDirectory = Paths.get(ClassLoader.getSystemResource("taxonomy/nodes.dmp").toURI()).getParent();
+        cacheFile = TaxonomyLineageResolver.getCacheFile(temporaryFolder.getRoot().toPath(), taxonomyDirectory);
+        resolver = TaxonomyLineageResolver.load(taxonomyDirectory, cacheFile);
+    }
+
+    @Test
+    public void testLineage() {
+        assertTrue(resolver.contains(562));
+        assertEquals(561, resolver.getParent(562));
+        assertEquals(Kraken2ReportIndex.SPECIES, resolver.getRank(562));
+        assertEquals("Escherichia coli", resolver.getName(562));
+
+        assertEquals(561, resolver.findAncestor(562, Kraken2ReportIndex.GENUS));
+        assertEquals(543, resolver.findAncestor(562, Kraken2ReportIndex.FAMILY));
+        assertEquals(2, resolver.findAncestor(562, Kraken2ReportIndex.DOMAIN));
+        assertEquals("Enterobacteriaceae", resolver.getName(resolver.findAncestor(562, Kraken2ReportIndex.FAMILY)));
+
+        // through a species group, which has no rank code
+        assertEquals(TaxonomyLineageResolver.NO_RANK, resolver.getRank(354276));
+        assertEquals(547, resolver.findAncestor(158836, Kraken2ReportIndex.GENUS));
+
+        // the root has no parent
+        assertEquals(-1, resolver.getParent(1));
+        assertEquals(-1, resolver.findAncestor(1, Kraken2ReportIndex.GENUS));
+    }
+
+    @Test
+    public void testUnknownTaxon() {
+        assertFalse(resolver.contains(3));
+        assertFalse(resolver.contains(Integer.MAX_VALUE));
+        assertEquals(-1, resolver.findAncestor(3, Kraken2ReportIndex.GENUS));
+        assertEquals(-1, resolver.findAncestor(-1, Kraken2ReportIndex.GENUS));
+        assertNull(resolver.getName(3));
+    }
+
+    @Test
+    public void testReuseCache() throws Throwable {
+        FileTime modified = Files.getLastModifiedTime(cacheFile);
+        TaxonomyLineageResolver reloaded = TaxonomyLineageResolver.load(taxonomyDirectory, cacheFile);
+        assertEquals(modified, Files.getLastModifiedTime(cacheFile));
+        assertEquals(543, reloaded.findAncestor(28901, Kraken2ReportIndex.FAMILY));
+    }
+
+    @Test
+    public void testRebuildUnreadableCache() throws Throwable {
+        long validLength = Files.size(cacheFile);
+        // a cache file cut short, and one written by another version
+        byte[] truncated = Arrays.copyOf(Files.readAllBytes(cacheFile), 100);
+        byte[] otherVersion = Files.readAllBytes(cacheFile);
+        otherVersion[7] = 99;
+
+        for (byte[] contents : Arrays.asList(truncated, otherVersion)) {
+            Files.write(cacheFile, contents);
+            TaxonomyLineageResolver rebuilt = TaxonomyLineageResolver.load(taxonomyDirectory, cacheFile);
+            assertEquals(543, rebuilt.findAncestor(562, Kraken2ReportIndex.FAMILY));
+            assertEquals(validLength, Files.size(cacheFile));
+        }
+        // no temporary files are left behind
+        try (Stream<Path> files = Files.list(cacheFile.getParent())) {
+            assertEquals(0, files.filter(file -> file.getFileName().toString().endsWith(".tmp")).count());
+        }
+    }
+
+    @Test
+    public void testCacheFileNames() throws Throwable {
+        Path otherDump = temporaryFolder.newFolder("other").toPath();
+        Files.copy(taxonomyDirectory.resolve("nodes.dmp"), otherDump.resolve("nodes.dmp"));
+        Files.copy(taxonomyDirectory.resolve("names.dmp"), otherDump.resolve("names.dmp"));
+        Path otherCacheFile = TaxonomyLineageResolver.getCacheFile(temporaryFolder.getRoot().toPath(), otherDump);
+        assertFalse(cacheFile.equals(otherCacheFile));
+        assertEquals(otherCacheFile, TaxonomyLineageResolver.getCacheFile(temporaryFolder.getRoot().toPath(),
+                otherDump.resolve("..").resolve("other")));
+
+        // a replaced dump gets a new cache file
+        Files.setLastModifiedTime(otherDump.resolve("names.dmp"), FileTime.fromMillis(0));
+        assertFalse(otherCacheFile.equals(
+                TaxonomyLineageResolver.getCacheFile(temporaryFolder.getRoot().toPath(), otherDump)));
+    }
+
+    @Test
+    public void testTruncateLongName() throws Throwable {
+        Path dump = temporaryFolder.newFolder("long-name").toPath();
+        Files.write(dump.resolve("nodes.dmp"), Arrays.asList("1\t|\t1\t|\tno rank\t|\t\t|",
+                "2\t|\t1\t|\tspecies\t|\t\t|"), StandardCharsets.UTF_8);
+        // two bytes per character, so the longest name which fits ends in the middle of one
+        String name = String.join("", Collections.nCopies(20000, "\u00e9"));
+        Files.write(dump.resolve("names.dmp"),
+                Collections.singletonList("2\t|\t" + name + "\t|\t\t|\tscientific name\t|"), StandardCharsets.UTF_8);
+
+        TaxonomyLineageResolver longNames = TaxonomyLineageResolver.load(dump, dump.resolve("taxonomy.bin"));
+        assertEquals(name.substring(0, Short.MAX_VALUE / 2), longNames.getName(2));
+    }
+
+    @Test
+    public void testTruncatedLength() {
+        byte[] name = "a\u00e9\u20ac".getBytes(StandardCharsets.UTF_8);
+        assertEquals(6, TaxonomyLineageResolver.truncatedLength(name, 10));
+        assertEquals(3, TaxonomyLineageResolver.truncatedLength(name, 5));
+        assertEquals(3, TaxonomyLineageResolver.truncatedLength(name, 3));
+        assertEquals(1, TaxonomyLineageResolver.truncatedLength(name, 2));
+    }
+
+    @Test
+    public void testUnwritableCache() throws Throwable {
+        // the cache directory cannot be created under a regular file
+        Path unwritableCacheFile = temporaryFolder.newFile("not-a-directory").toPath().resolve("taxonomy.bin");
+        TaxonomyLineageResolver inMemory = TaxonomyLineageResolver.load(taxonomyDirectory, unwritableCacheFile);
+        assertFalse(Files.exists(unwritableCacheFile));
+        assertEquals(543, inMemory.findAncestor(562, Kraken2ReportIndex.FAMILY));
+        assertEquals("Escherichia coli", inMemory.getName(562));
+    }
+}